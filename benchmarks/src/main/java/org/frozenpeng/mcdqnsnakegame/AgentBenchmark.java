@@ -0,0 +1,161 @@
+package org.frozenpeng.mcdqnsnakegame;
+
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Agent hot paths: a greedy forward pass through ND4J and through {@link FastQNetwork}, storing a transition, one replay() training step
+ * at several minibatch sizes, and one tick of actions for many AI boards, batched and one board at a time.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class AgentBenchmark {
+
+    private static final int PREFILLED_TRANSITIONS = 10000;
+
+    private SnakeGameDQNAgent agent;
+    private SnakeGameDQNAgent javaInferenceAgent;
+    private INDArray stateArray;
+    private final float[] state = new float[SnakeEnvironment.STATE_SIZE];
+    private final float[] nextState = new float[SnakeEnvironment.STATE_SIZE];
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        agent = new SnakeGameDQNAgent();
+        agent.setEpsilon(0); // Always take the forward-pass path
+        prefill(agent);
+        stateArray = Nd4j.create(state, new int[]{1, SnakeEnvironment.STATE_SIZE});
+
+        javaInferenceAgent = new SnakeGameDQNAgent();
+        javaInferenceAgent.setEpsilon(0);
+        if (!javaInferenceAgent.enableJavaInference()) {
+            throw new IllegalStateException("Java inference unavailable");
+        }
+    }
+
+    // Real transitions from random play, so replay() trains on realistic inputs
+    private static void prefill(SnakeGameDQNAgent agent) {
+        SnakeEnvironment environment = new SnakeEnvironment(new Random(42));
+        Random random = new Random(42);
+        float[] state = new float[SnakeEnvironment.STATE_SIZE];
+        float[] nextState = new float[SnakeEnvironment.STATE_SIZE];
+        for (int i = 0; i < PREFILLED_TRANSITIONS; i++) {
+            environment.writeStateInfo(state, 0);
+            Direction action = Direction.values()[random.nextInt(Direction.values().length)];
+            environment.step(action);
+            environment.writeStateInfo(nextState, 0);
+            boolean done = environment.isGameOver();
+            agent.remember(state, action, done ? -10 : 0, nextState, done);
+            if (done) {
+                environment.reset();
+            }
+        }
+    }
+
+    @Benchmark
+    public Direction getAction() {
+        return agent.getAction(stateArray);
+    }
+
+    @Benchmark
+    public Direction getActionJavaInference() {
+        return javaInferenceAgent.getAction(state);
+    }
+
+    @Benchmark
+    public void remember() {
+        agent.remember(state, Direction.UP, -0.1, nextState, false);
+    }
+
+    @State(Scope.Thread)
+    public static class Replay {
+
+        @Param({"32", "128", "512"})
+        public int batchSize;
+
+        SnakeGameDQNAgent agent;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            agent = new SnakeGameDQNAgent(AgentConfig.defaults().withBatchSize(batchSize));
+            prefill(agent);
+        }
+    }
+
+    @Benchmark
+    public boolean replay(Replay replay) {
+        return replay.agent.replay();
+    }
+
+    /**
+     * N AI boards, each in a different position, all due on the same tick. ND4J inference, as without a Java-capable network.
+     */
+    @State(Scope.Thread)
+    public static class AiBoards {
+
+        @Param({"1", "16", "128", "512"})
+        public int boards;
+
+        SnakeGameDQNAgent agent;
+        BatchedInference inference;
+        SnakeEnvironment[] environments;
+        float[] state = new float[SnakeEnvironment.STATE_SIZE];
+        Direction[] actions;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            agent = new SnakeGameDQNAgent();
+            agent.setEpsilon(0);
+            inference = new BatchedInference(agent);
+            environments = new SnakeEnvironment[boards];
+            actions = new Direction[boards];
+            Random random = new Random(42);
+            for (int i = 0; i < boards; i++) {
+                environments[i] = new SnakeEnvironment(new Random(i));
+                for (int step = random.nextInt(5); step > 0 && !environments[i].isGameOver(); step--) {
+                    environments[i].step(Direction.values()[random.nextInt(Direction.values().length)]);
+                }
+            }
+        }
+    }
+
+    @Benchmark
+    public Direction[] aiTickBatched(AiBoards ai) {
+        int[] tickets = new int[ai.boards];
+        for (int i = 0; i < ai.boards; i++) {
+            tickets[i] = ai.inference.request(ai.environments[i]);
+        }
+        for (int i = 0; i < ai.boards; i++) {
+            ai.actions[i] = ai.inference.action(tickets[i]);
+        }
+        return ai.actions;
+    }
+
+    @Benchmark
+    public Direction[] aiTickPerBoard(AiBoards ai) {
+        for (int i = 0; i < ai.boards; i++) {
+            ai.environments[i].writeStateInfo(ai.state, 0);
+            ai.actions[i] = ai.agent.getAction(ai.state);
+        }
+        return ai.actions;
+    }
+}
@@ -0,0 +1,62 @@
+package org.frozenpeng.mcdqnsnakegame;
+
+import org.bukkit.Material;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A {@link World} that only remembers block types, so boards can be rendered without a server.
+ * Only getBlockAt() is implemented, and its blocks only support getType() and setType().
+ */
+public final class InMemoryWorld {
+
+    private final Map<Long, Material> blocks = new HashMap<>();
+    private long writes;
+
+    public World asWorld() {
+        return (World) Proxy.newProxyInstance(World.class.getClassLoader(), new Class<?>[]{World.class}, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "getBlockAt":
+                    return block((Integer) args[0], (Integer) args[1], (Integer) args[2]);
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "equals":
+                    return proxy == args[0];
+                case "toString":
+                    return "InMemoryWorld";
+                default:
+                    throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+
+    public long getWrites() {
+        return writes;
+    }
+
+    private Block block(int x, int y, int z) {
+        long key = ((long) x & 0x3FFFFFF) << 38 | ((long) z & 0x3FFFFFF) << 12 | (y & 0xFFF);
+        return (Block) Proxy.newProxyInstance(Block.class.getClassLoader(), new Class<?>[]{Block.class}, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "getType":
+                    return blocks.getOrDefault(key, Material.AIR);
+                case "setType":
+                    blocks.put(key, (Material) args[0]);
+                    writes++;
+                    return null;
+                case "hashCode":
+                    return Long.hashCode(key);
+                case "equals":
+                    return proxy == args[0];
+                case "toString":
+                    return "Block(" + x + ", " + y + ", " + z + ")";
+                default:
+                    throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+}
@@ -0,0 +1,85 @@
+package org.frozenpeng.mcdqnsnakegame;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Checks that pure-Java inference ({@link FastQNetwork}) still gives ND4J's Q-values once the weights have moved away
+ * from their initialization. For each hidden layer size it trains an agent headless, copies its network into a
+ * float32 {@link PolicyFile} and measures the largest Q-value difference against ND4J, the same check the plugin runs
+ * before enabling Java inference. It also counts the states where the two pick different greedy actions. Exits with
+ * status 1 if any deviation is above the limit.
+ * <pre>
+ *   java -cp target/benchmarks.jar org.frozenpeng.mcdqnsnakegame.InferenceCheck [episodes] [max-deviation] [hidden-sizes]
+ * </pre>
+ */
+public class InferenceCheck {
+
+    private static final int BOARDS = 8;
+    private static final int STATES = 4096;
+
+    public static void main(String[] args) throws IOException {
+        int episodes = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        double maxDeviation = args.length > 1 ? Double.parseDouble(args[1]) : 1e-4;
+        String[] hiddenSizes = (args.length > 2 ? args[2] : "64,128").split(",");
+
+        float[] states = sampleStates(new Random(42));
+        boolean passed = true;
+        System.out.println("hidden_size,max_deviation,action_mismatches");
+        for (String hiddenSize : hiddenSizes) {
+            SnakeGameDQNAgent agent = new SnakeGameDQNAgent(AgentConfig.defaults().withHiddenLayerSize(Integer.parseInt(hiddenSize.trim())));
+            agent.trainHeadless(episodes, BOARDS, () -> true, null);
+
+            File policyFile = File.createTempFile("inference-check", ".bin");
+            try {
+                agent.exportPolicy(policyFile, false);
+                float deviation = agent.validatePolicy(policyFile);
+
+                // Gameplay's two paths: the agent's ND4J forward pass against the Java network
+                FastQNetwork java = PolicyFile.read(policyFile, StateEncoding.FEATURES);
+                Direction[] nd4jActions = new Direction[STATES];
+                agent.getGreedyActions(states, STATES, nd4jActions);
+                int mismatches = 0;
+                for (int i = 0; i < STATES; i++) {
+                    if (java.bestAction(states, i * StateEncoding.FEATURES.size()) != nd4jActions[i].ordinal()) {
+                        mismatches++;
+                    }
+                }
+
+                System.out.printf("%s,%.8f,%d%n", hiddenSize.trim(), deviation, mismatches);
+                if (deviation > maxDeviation) {
+                    System.out.printf("FAIL: hidden size %s deviates by %.8f, more than %.8f%n", hiddenSize.trim(), deviation, maxDeviation);
+                    passed = false;
+                }
+            } finally {
+                policyFile.delete();
+            }
+        }
+        System.out.println(passed ? "PASS" : "FAIL");
+        System.exit(passed ? 0 : 1);
+    }
+
+    // States from random play, new boards replacing finished ones
+    private static float[] sampleStates(Random random) {
+        int stateSize = StateEncoding.FEATURES.size();
+        float[] states = new float[STATES * stateSize];
+        VectorizedSnakeEnvironment environments = new VectorizedSnakeEnvironment(BOARDS);
+        Direction[] actions = new Direction[BOARDS];
+        float[] row = new float[BOARDS * stateSize];
+        for (int filled = 0; filled < STATES; filled += BOARDS) {
+            environments.writeStates(row, StateEncoding.FEATURES);
+            System.arraycopy(row, 0, states, filled * stateSize, Math.min(BOARDS, STATES - filled) * stateSize);
+            for (int i = 0; i < BOARDS; i++) {
+                actions[i] = Direction.values()[random.nextInt(Direction.values().length)];
+            }
+            environments.step(actions);
+            for (int i = 0; i < BOARDS; i++) {
+                if (environments.get(i).isGameOver()) {
+                    environments.get(i).reset();
+                }
+            }
+        }
+        return states;
+    }
+}
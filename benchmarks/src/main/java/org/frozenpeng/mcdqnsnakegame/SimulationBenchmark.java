@@ -0,0 +1,129 @@
+package org.frozenpeng.mcdqnsnakegame;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Game-side hot paths: one move of a rendered board, one move of the bare environment, state encoding,
+ * and the free-cell lookup food placement uses, at several snake lengths.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SimulationBenchmark {
+
+    private static final int ACTION_TABLE_SIZE = 1 << 16;
+
+    private final Direction[] actions = new Direction[ACTION_TABLE_SIZE];
+    private int nextAction;
+
+    private GameSession session;
+    private SnakeEnvironment environment;
+    private final float[] state = new float[SnakeEnvironment.STATE_SIZE];
+    private final float[] gridState = new float[SnakeEnvironment.GRID_STATE_SIZE];
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        // Same pseudo-random moves every run, with a bias towards going straight so games last a while
+        Random random = new Random(42);
+        Direction heading = Direction.UP;
+        for (int i = 0; i < actions.length; i++) {
+            int roll = random.nextInt(10);
+            heading = roll == 0 ? heading.turnLeft() : roll == 1 ? heading.turnRight() : heading;
+            actions[i] = heading;
+        }
+
+        session = new GameSession(0, new InMemoryWorld().asWorld(), 0, 64, 0, null, 1, s -> { });
+        session.start(Direction.UP, 42);
+        session.flushDisplay();
+        environment = new SnakeEnvironment(new Random(42));
+    }
+
+    private Direction nextAction() {
+        Direction action = actions[nextAction];
+        nextAction = (nextAction + 1) & (ACTION_TABLE_SIZE - 1);
+        return action;
+    }
+
+    /**
+     * One step of a board in the world: move, tick and the block writes for the cells that changed.
+     */
+    @Benchmark
+    public void sessionStep() {
+        if (session.isGameOver()) {
+            session.restart(Direction.UP);
+        } else {
+            session.moveSnake(nextAction());
+            session.tick();
+        }
+        session.flushDisplay();
+    }
+
+    @Benchmark
+    public boolean environmentStep() {
+        if (environment.isGameOver()) {
+            environment.reset();
+        }
+        environment.step(nextAction());
+        return environment.isGameOver();
+    }
+
+    @Benchmark
+    public void getStateInfo(Blackhole blackhole) {
+        session.getStateInfo(state);
+        blackhole.consume(state);
+    }
+
+    /**
+     * The full-board state for agent.state: grid, copied from the planes the environment keeps up to date.
+     */
+    @Benchmark
+    public void writeGridState(Blackhole blackhole) {
+        session.getGame().writeGridState(gridState, 0);
+        blackhole.consume(gridState);
+    }
+
+    /**
+     * Picking a food cell for a snake of the given length on the 13x13 board (169 cells).
+     */
+    @State(Scope.Thread)
+    public static class FoodPlacement {
+
+        @Param({"1", "20", "84", "160"})
+        public int snakeLength;
+
+        SnakeBody body;
+        Random random;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            body = new SnakeBody(SnakeEnvironment.BOARD_WIDTH * SnakeEnvironment.BOARD_HEIGHT);
+            random = new Random(42);
+            for (int cell = 0; cell < snakeLength; cell++) {
+                body.addHead(cell);
+            }
+        }
+    }
+
+    @Benchmark
+    public int generateFood(FoodPlacement food) {
+        return food.body.randomFreeCell(food.random);
+    }
+}
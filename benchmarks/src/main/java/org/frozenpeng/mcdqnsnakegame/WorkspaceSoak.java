@@ -0,0 +1,80 @@
+package org.frozenpeng.mcdqnsnakegame;
+
+import org.bytedeco.javacpp.Pointer;
+
+/**
+ * Long-running check that the agent's off-heap memory stays flat under sustained training. Trains headless with
+ * ND4J inference (so every action, training step and weight publish goes through ND4J) and samples both the off-heap
+ * bytes JavaCPP tracks and the process's physical memory, which also catches buffers only the GC frees. After a
+ * warm-up, neither may grow by more than the tolerance; exits with status 1 if one does.
+ * <pre>
+ *   java -cp target/benchmarks.jar org.frozenpeng.mcdqnsnakegame.WorkspaceSoak [minutes] [boards] [tolerance-percent]
+ * </pre>
+ */
+public class WorkspaceSoak {
+
+    private static final int EPISODES_PER_ROUND = 50;
+    private static final long SLACK_BYTES = 16L << 20; // Allocator noise that isn't a leak
+    private static final long PHYSICAL_SLACK_BYTES = 64L << 20; // Also the heap settling after the warm-up
+
+    public static void main(String[] args) {
+        double minutes = args.length > 0 ? Double.parseDouble(args[0]) : 10;
+        int boards = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+        double tolerance = (args.length > 2 ? Double.parseDouble(args[2]) : 10) / 100;
+
+        SnakeGameDQNAgent agent = new SnakeGameDQNAgent(AgentConfig.defaults(), new SnakeMetrics());
+        agent.enablePrioritizedReplay(0.6, 0.4, 100000, PrioritizedReplay.DEFAULT_WINDOW);
+
+        long start = System.nanoTime();
+        long end = start + (long) (minutes * 60e9);
+        long warmUpEnd = start + (end - start) / 5;
+        long baseline = -1;
+        long peak = 0;
+        long physicalBaseline = -1;
+        long physicalPeak = 0;
+        int rounds = 0;
+
+        System.out.println("seconds,offheap_mb,physical_mb,heap_mb,fit_count");
+        while (System.nanoTime() < end) {
+            agent.trainHeadless(EPISODES_PER_ROUND, boards, () -> true, null);
+            rounds++;
+
+            long offHeap = Pointer.totalBytes();
+            long physical = Pointer.physicalBytes();
+            Runtime runtime = Runtime.getRuntime();
+            System.out.printf("%.0f,%.1f,%.1f,%.1f,%s%n", (System.nanoTime() - start) / 1e9, offHeap / 1048576.0,
+                    physical / 1048576.0, (runtime.totalMemory() - runtime.freeMemory()) / 1048576.0,
+                    agent.getMetrics().snapshot().get("fit_count"));
+
+            if (System.nanoTime() < warmUpEnd) {
+                continue;
+            }
+            if (baseline < 0) {
+                baseline = offHeap;
+                physicalBaseline = physical;
+            }
+            peak = Math.max(peak, offHeap);
+            physicalPeak = Math.max(physicalPeak, physical);
+        }
+
+        if (baseline < 0) {
+            System.out.println("Run too short to get past the warm-up (" + rounds + " rounds)");
+            System.exit(1);
+        }
+        long limit = baseline + Math.max(SLACK_BYTES, (long) (baseline * tolerance));
+        System.out.printf("Off-heap after warm-up %.1f MB, peak %.1f MB, limit %.1f MB%n",
+                baseline / 1048576.0, peak / 1048576.0, limit / 1048576.0);
+        long physicalLimit = physicalBaseline + Math.max(PHYSICAL_SLACK_BYTES, (long) (physicalBaseline * tolerance));
+        System.out.printf("Physical after warm-up %.1f MB, peak %.1f MB, limit %.1f MB%n",
+                physicalBaseline / 1048576.0, physicalPeak / 1048576.0, physicalLimit / 1048576.0);
+        if (peak > limit) {
+            System.out.println("FAIL: off-heap memory grew under sustained training");
+            System.exit(1);
+        }
+        if (physicalPeak > physicalLimit) {
+            System.out.println("FAIL: physical memory grew under sustained training");
+            System.exit(1);
+        }
+        System.out.println("PASS");
+    }
+}
@@ -0,0 +1,213 @@
+package org.frozenpeng.mcdqnsnakegame;
+
+import be.seeseemelk.mockbukkit.MockBukkit;
+import be.seeseemelk.mockbukkit.ServerMock;
+import be.seeseemelk.mockbukkit.entity.PlayerMock;
+import org.bukkit.command.CommandSender;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Macro load test of the whole plugin against MockBukkit. Loads {@link Main} into a mock server and uses the real
+ * commands to start player games, AI boards and in-world training. Then it drives the server scheduler one tick
+ * at a time. Finished games are started again, so the load stays the same for the whole run. After a warm-up the
+ * harness reports:
+ * <ul>
+ *   <li>the wall time each tick spends in the plugin, which is what it adds to the server's MSPT</li>
+ *   <li>blocks written to the world per tick</li>
+ *   <li>main thread allocation per tick</li>
+ *   <li>finished games per game second (20 ticks)</li>
+ * </ul>
+ * It exits with status 1 if any of these is over its threshold. The measured tick times are fed back as the
+ * server's average tick time, so the {@link TickBudget} reacts the way it would on a live server.
+ * <pre>
+ *   cd benchmarks && mvn -P soak verify -Dsoak.ticks=20000 -Dsoak.ai-boards=128
+ * </pre>
+ * Settings are system properties; the soak profile in pom.xml lists them with their defaults.
+ */
+public class ServerSoak {
+
+    private static final int AVERAGE_WINDOW = 100; // Ticks in the server's average tick time, as on Paper
+    private static final int TURN_INTERVAL = 20;   // Ticks between the simulated players looking somewhere else
+    private static final long AGENT_LOAD_TIMEOUT_MILLIS = 300_000;
+
+    public static void main(String[] args) throws InterruptedException {
+        int ticks = Integer.getInteger("soak.ticks", 6000);
+        int warmUpTicks = Integer.getInteger("soak.warmup-ticks", 600);
+        int players = Integer.getInteger("soak.players", 32);
+        int aiBoards = Integer.getInteger("soak.ai-boards", 64);
+        boolean training = Boolean.parseBoolean(System.getProperty("soak.training", "true"));
+        double baseMspt = Double.parseDouble(System.getProperty("soak.base-mspt", "0"));
+        double maxP99Millis = Double.parseDouble(System.getProperty("soak.max-p99-ms", "25"));
+        double maxBlockWrites = Double.parseDouble(System.getProperty("soak.max-block-writes-per-tick", "1500"));
+        double maxAllocKb = Double.parseDouble(System.getProperty("soak.max-alloc-kb-per-tick", "512"));
+        double minEpisodes = Double.parseDouble(System.getProperty("soak.min-episodes-per-sec", "0.5"));
+
+        SoakServer server = MockBukkit.mock(new SoakServer(baseMspt));
+        boolean passed;
+        try {
+            server.addSimpleWorld("world");
+            Main plugin = MockBukkit.load(Main.class);
+            if (!waitForAgent(plugin)) {
+                System.out.println("FAIL: the Snake AI model did not load");
+                System.exit(1);
+            }
+            passed = run(server, plugin, ticks, warmUpTicks, players, aiBoards, training,
+                    maxP99Millis, maxBlockWrites, maxAllocKb, minEpisodes);
+        } finally {
+            MockBukkit.unmock();
+        }
+        System.out.println(passed ? "PASS" : "FAIL");
+        System.exit(passed ? 0 : 1);
+    }
+
+    private static boolean run(SoakServer server, Main plugin, int ticks, int warmUpTicks, int playerCount, int aiBoards,
+                               boolean training, double maxP99Millis, double maxBlockWrites, double maxAllocKb,
+                               double minEpisodes) {
+        GameManager gameManager = plugin.getGameManager();
+        SnakeMetrics metrics = plugin.getMetrics();
+        CommandSender console = server.getConsoleSender();
+        Random random = new Random(42);
+
+        List<PlayerMock> players = new ArrayList<>();
+        for (int i = 0; i < playerCount; i++) {
+            players.add(server.addPlayer());
+        }
+        if (training) {
+            server.dispatchCommand(console, "trainsnake " + Integer.MAX_VALUE);
+        }
+
+        LatencyHistogram tickNanos = new LatencyHistogram();
+        long blockWrites = 0;
+        long maxTickBlockWrites = 0;
+        long allocatedBytes = 0;
+        long restartedGames = 0;
+        long trainingEpisodesAtStart = 0;
+        long wallStart = 0;
+
+        for (int tick = 0; tick < warmUpTicks + ticks; tick++) {
+            boolean measured = tick >= warmUpTicks;
+            if (tick == warmUpTicks) {
+                trainingEpisodesAtStart = metrics.snapshot().get("episodes").longValue();
+                wallStart = System.nanoTime();
+            }
+            if (tick % TURN_INTERVAL == 0) {
+                for (PlayerMock player : players) {
+                    player.setRotation(90 * random.nextInt(4), 0);
+                }
+            }
+
+            long writesBefore = metrics.getBlockWrites();
+            long allocatedBefore = allocatedBytes();
+            long start = System.nanoTime();
+
+            // Commands run on the main thread like everything else, so restarting games counts towards the tick
+            int restarted = 0;
+            for (PlayerMock player : players) {
+                if (gameManager.getSession(player) == null) {
+                    player.performCommand("snakegame");
+                    restarted++;
+                }
+            }
+            int trainingSessions = training && plugin.getAgent().isTraining() ? 1 : 0;
+            int missingAiBoards = aiBoards - (gameManager.getSessionCount() - players.size() - trainingSessions);
+            if (missingAiBoards > 0) {
+                server.dispatchCommand(console, "snakegame ai " + missingAiBoards);
+                restarted += missingAiBoards;
+            }
+            server.getScheduler().performOneTick();
+
+            long nanos = System.nanoTime() - start;
+            long allocated = allocatedBytes() - allocatedBefore;
+            long writes = metrics.getBlockWrites() - writesBefore;
+            server.recordTick(nanos);
+            if (measured) {
+                tickNanos.record(nanos);
+                allocatedBytes += allocated;
+                blockWrites += writes;
+                maxTickBlockWrites = Math.max(maxTickBlockWrites, writes);
+                restartedGames += restarted;
+            }
+        }
+
+        double wallSeconds = (System.nanoTime() - wallStart) / 1e9;
+        double gameSeconds = ticks / 20.0;
+        long episodes = restartedGames + metrics.snapshot().get("episodes").longValue() - trainingEpisodesAtStart;
+        double p99Millis = tickNanos.getPercentile(99) / 1e6;
+        double writesPerTick = (double) blockWrites / ticks;
+        double allocKbPerTick = allocatedBytes / 1024.0 / ticks;
+        double episodesPerSecond = episodes / gameSeconds;
+
+        System.out.printf("%d ticks (%.0f game seconds) in %.1f s: %d player games, %d AI boards, training %s%n",
+                ticks, gameSeconds, wallSeconds, playerCount, aiBoards, training ? "on" : "off");
+        System.out.printf("plugin_tick_ms: mean %.3f, p50 %.3f, p99 %.3f, max %.3f%n", tickNanos.getMean() / 1e6,
+                tickNanos.getPercentile(50) / 1e6, p99Millis, tickNanos.getMax() / 1e6);
+        System.out.printf("block_writes_per_tick: mean %.1f, max %d%n", writesPerTick, maxTickBlockWrites);
+        System.out.printf("main_thread_alloc: %.1f KB per tick, %.2f MB per game second%n", allocKbPerTick,
+                allocKbPerTick * 20 / 1024);
+        System.out.printf("episodes_per_sec: %.2f per game second, %.2f per wall second (%d finished)%n",
+                episodesPerSecond, episodes / wallSeconds, episodes);
+        System.out.printf("tick_budget_ms: %.2f%n", gameManager.getTickBudget().getBudgetNanos() / 1e6);
+
+        boolean passed = check("p99 plugin tick time", p99Millis, maxP99Millis, true);
+        passed &= check("block writes per tick", writesPerTick, maxBlockWrites, true);
+        passed &= check("main thread KB allocated per tick", allocKbPerTick, maxAllocKb, true);
+        passed &= check("episodes per game second", episodesPerSecond, minEpisodes, false);
+        return passed;
+    }
+
+    private static boolean check(String name, double value, double limit, boolean isMaximum) {
+        boolean ok = isMaximum ? value <= limit : value >= limit;
+        if (!ok) {
+            System.out.printf("FAIL: %s %.3f is %s the limit of %.3f%n", name, value, isMaximum ? "above" : "below", limit);
+        }
+        return ok;
+    }
+
+    // The agent loads on an async thread after onEnable; ticks don't start until it is ready
+    private static boolean waitForAgent(Main plugin) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + AGENT_LOAD_TIMEOUT_MILLIS;
+        while (plugin.getAgent() == null && System.currentTimeMillis() < deadline) {
+            Thread.sleep(100);
+        }
+        return plugin.getAgent() != null;
+    }
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getThreadAllocatedBytes(
+                Thread.currentThread().getId());
+    }
+
+    /**
+     * Reports the harness's own tick measurements, plus a fixed cost for the rest of the server, as the average tick
+     * time. MockBukkit doesn't measure ticks itself.
+     */
+    static class SoakServer extends ServerMock {
+
+        private final double baseMspt;
+        private final double[] recentMillis = new double[AVERAGE_WINDOW];
+        private int cursor;
+        private int count;
+        private double sum;
+
+        SoakServer(double baseMspt) {
+            this.baseMspt = baseMspt;
+        }
+
+        void recordTick(long nanos) {
+            double millis = baseMspt + nanos / 1e6;
+            sum += millis - recentMillis[cursor];
+            recentMillis[cursor] = millis;
+            cursor = (cursor + 1) % AVERAGE_WINDOW;
+            count = Math.min(count + 1, AVERAGE_WINDOW);
+        }
+
+        @Override
+        public double getAverageTickTime() {
+            return count == 0 ? baseMspt : sum / count;
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package org.frozenpeng.mcdqnsnakegame;
+
+import org.bukkit.configuration.ConfigurationSection;
+
+/**
+ * Hyperparameters of a {@link SnakeGameDQNAgent}. Immutable; the {@code with...} methods return modified copies,
+ * which is how {@link HyperparameterSweep} builds its grid.
+ */
+public final class AgentConfig {
+
+    private final double gamma;
+    private final double epsilonDecay;
+    private final int batchSize;
+    private final int replayMemorySize;
+    private final double learningRate;
+    private final int hiddenLayerSize;
+    private final StateEncoding stateEncoding;
+    private final int replayMemoryMb;
+
+    /**
+     * The replay size is capped to what fits in replayMemoryMb of heap with this state encoding, see
+     * {@link #maxReplayMemorySize}.
+     */
+    public AgentConfig(double gamma, double epsilonDecay, int batchSize, int replayMemorySize, double learningRate, int hiddenLayerSize,
+                       StateEncoding stateEncoding, int replayMemoryMb) {
+        this.gamma = gamma;
+        this.epsilonDecay = epsilonDecay;
+        this.batchSize = batchSize;
+        this.replayMemorySize = Math.min(replayMemorySize, maxReplayMemorySize(stateEncoding, replayMemoryMb));
+        this.learningRate = learningRate;
+        this.hiddenLayerSize = hiddenLayerSize;
+        this.stateEncoding = stateEncoding;
+        this.replayMemoryMb = replayMemoryMb;
+    }
+
+    /**
+     * The values the agent has always trained with, except the replay size: the original 10000 experiences are now
+     * 100000. The 64 MB replay budget holds all 100000 feature experiences (69 bytes each) but only about 16500 grid
+     * ones (4 KB each).
+     */
+    public static AgentConfig defaults() {
+        return new AgentConfig(0.95, 0.9999, 32, 100000, 0.001, 64, StateEncoding.FEATURES, 64);
+    }
+
+    /**
+     * Most experiences a heap {@link ReplayBuffer} may hold within replayMemoryMb.
+     */
+    public static int maxReplayMemorySize(StateEncoding stateEncoding, int replayMemoryMb) {
+        long experiences = replayMemoryMb * 1024L * 1024L / ReplayBuffer.bytesPerExperience(stateEncoding.size());
+        return (int) Math.max(1, Math.min(Integer.MAX_VALUE, experiences));
+    }
+
+    /**
+     * Reads the {@code agent} section of config.yml, falling back to {@link #defaults()} for missing keys.
+     */
+    public static AgentConfig fromConfig(ConfigurationSection section) {
+        AgentConfig defaults = defaults();
+        if (section == null) {
+            return defaults;
+        }
+        int replayMemorySize = Math.max(1, section.getInt("replay-size", defaults.replayMemorySize));
+        AgentConfig config = new AgentConfig(section.getDouble("gamma", defaults.gamma),
+                section.getDouble("epsilon-decay", defaults.epsilonDecay),
+                Math.max(1, section.getInt("batch-size", defaults.batchSize)),
+                replayMemorySize,
+                section.getDouble("learning-rate", defaults.learningRate),
+                Math.max(1, section.getInt("hidden-size", defaults.hiddenLayerSize)),
+                section.getString("state", "features").equalsIgnoreCase("grid") ? StateEncoding.GRID : defaults.stateEncoding,
+                Math.max(1, section.getInt("replay-memory-mb", defaults.replayMemoryMb)));
+        if (config.replayMemorySize < replayMemorySize) {
+            System.err.println("agent.replay-size " + replayMemorySize + " needs "
+                    + replayMemorySize * ReplayBuffer.bytesPerExperience(config.stateEncoding.size()) / (1024 * 1024)
+                    + " MB of heap with state: " + config.stateEncoding.name().toLowerCase() + ", more than agent.replay-memory-mb ("
+                    + config.replayMemoryMb + "). Using " + config.replayMemorySize + " experiences");
+        }
+        return config;
+    }
+
+    /**
+     * Writes these values to an {@code agent} section, so {@link #fromConfig} reads them back.
+     */
+    public void writeTo(ConfigurationSection section) {
+        section.set("gamma", gamma);
+        section.set("epsilon-decay", epsilonDecay);
+        section.set("batch-size", batchSize);
+        section.set("replay-size", replayMemorySize);
+        section.set("learning-rate", learningRate);
+        section.set("hidden-size", hiddenLayerSize);
+        section.set("state", stateEncoding.name().toLowerCase());
+        section.set("replay-memory-mb", replayMemoryMb);
+    }
+
+    public double getGamma() {
+        return gamma;
+    }
+
+    public double getEpsilonDecay() {
+        return epsilonDecay;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public int getReplayMemorySize() {
+        return replayMemorySize;
+    }
+
+    public double getLearningRate() {
+        return learningRate;
+    }
+
+    public int getHiddenLayerSize() {
+        return hiddenLayerSize;
+    }
+
+    public StateEncoding getStateEncoding() {
+        return stateEncoding;
+    }
+
+    public int getReplayMemoryMb() {
+        return replayMemoryMb;
+    }
+
+    public AgentConfig withGamma(double gamma) {
+        return new AgentConfig(gamma, epsilonDecay, batchSize, replayMemorySize, learningRate, hiddenLayerSize, stateEncoding, replayMemoryMb);
+    }
+
+    public AgentConfig withEpsilonDecay(double epsilonDecay) {
+        return new AgentConfig(gamma, epsilonDecay, batchSize, replayMemorySize, learningRate, hiddenLayerSize, stateEncoding, replayMemoryMb);
+    }
+
+    public AgentConfig withBatchSize(int batchSize) {
+        return new AgentConfig(gamma, epsilonDecay, batchSize, replayMemorySize, learningRate, hiddenLayerSize, stateEncoding, replayMemoryMb);
+    }
+
+    public AgentConfig withReplayMemorySize(int replayMemorySize) {
+        return new AgentConfig(gamma, epsilonDecay, batchSize, replayMemorySize, learningRate, hiddenLayerSize, stateEncoding, replayMemoryMb);
+    }
+
+    public AgentConfig withLearningRate(double learningRate) {
+        return new AgentConfig(gamma, epsilonDecay, batchSize, replayMemorySize, learningRate, hiddenLayerSize, stateEncoding, replayMemoryMb);
+    }
+
+    public AgentConfig withHiddenLayerSize(int hiddenLayerSize) {
+        return new AgentConfig(gamma, epsilonDecay, batchSize, replayMemorySize, learningRate, hiddenLayerSize, stateEncoding, replayMemoryMb);
+    }
+
+    public AgentConfig withStateEncoding(StateEncoding stateEncoding) {
+        return new AgentConfig(gamma, epsilonDecay, batchSize, replayMemorySize, learningRate, hiddenLayerSize, stateEncoding, replayMemoryMb);
+    }
+
+    @Override
+    public String toString() {
+        return "gamma=" + gamma + ", epsilon-decay=" + epsilonDecay + ", batch-size=" + batchSize
+                + ", replay-size=" + replayMemorySize + ", learning-rate=" + learningRate + ", hidden-size=" + hiddenLayerSize
+                + ", state=" + stateEncoding.name().toLowerCase();
+    }
+}
@@ -0,0 +1,45 @@
+package org.frozenpeng.mcdqnsnakegame;
+
+/**
+ * Lets the trained agent play one game greedily. Actions come from a {@link BatchedInference} shared by all AI
+ * boards, so a tick costs one forward pass for all of them. The session closes when the snake dies, or when it
+ * has gone around without eating for long enough that it is clearly stuck in a loop.
+ */
+public class AiController implements SessionController {
+
+    private static final int MAX_STEPS_WITHOUT_FOOD = 2 * SnakeEnvironment.BOARD_WIDTH * SnakeEnvironment.BOARD_HEIGHT;
+
+    private final BatchedInference inference;
+    private int ticket = -1;
+    private int stepsWithoutFood;
+    private int lastScore;
+
+    public AiController(BatchedInference inference) {
+        this.inference = inference;
+    }
+
+    @Override
+    public void beginTick() {
+        inference.beginTick();
+    }
+
+    @Override
+    public void prepare(GameSession session) {
+        ticket = session.isGameOver() ? -1 : inference.request(session.getGame());
+    }
+
+    @Override
+    public void step(GameSession session) {
+        if (ticket < 0 || session.isGameOver() || stepsWithoutFood >= MAX_STEPS_WITHOUT_FOOD) {
+            session.close();
+            return;
+        }
+        session.moveSnake(inference.action(ticket));
+        session.tick();
+        ticket = -1;
+
+        int score = session.getGame().getScore();
+        stepsWithoutFood = score == lastScore ? stepsWithoutFood + 1 : 0;
+        lastScore = score;
+    }
+}
@@ -0,0 +1,120 @@
+package org.frozenpeng.mcdqnsnakegame;
+
+import org.bukkit.scheduler.BukkitRunnable;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Learner half of in-world training. The tick task only picks actions and {@link #submit}s transitions;
+ * this thread drains them into replay, runs the gradient steps and every {@code publishInterval} steps
+ * hands a copy of the weights back to the actor. The main thread never waits on it.
+ * <p>
+ * Transitions travel through a single-producer single-consumer ring allocated up front: one slot per transition
+ * the actor may run ahead, with states and next states packed into two flat arrays. Submitting copies into the
+ * next free slot, so the actor allocates nothing per step.
+ */
+public class AsyncLearner extends BukkitRunnable {
+
+    private static final long IDLE_PARK_NANOS = 1_000_000; // 1 ms between polls of an empty queue
+
+    private final SnakeGameDQNAgent agent;
+    private final Main gameInstance;
+    private final int publishInterval;
+
+    // Ring slots; slot i's states start at i * stateSize
+    private final int capacity;
+    private final int stateSize;
+    private final float[] states;
+    private final float[] nextStates;
+    private final Direction[] actions;
+    private final double[] rewards;
+    private final boolean[] done;
+    private final AtomicLong head = new AtomicLong(); // Next transition to train on, advanced by the learner only
+    private final AtomicLong tail = new AtomicLong(); // Next free slot, advanced by the actor only
+
+    private final AtomicLong learnerSteps = new AtomicLong();
+    private volatile boolean finishing;
+    private volatile boolean running = true;
+
+    /**
+     * @param capacity transitions the actor may submit before the learner has taken any of them
+     */
+    public AsyncLearner(SnakeGameDQNAgent agent, Main gameInstance, int publishInterval, int capacity) {
+        this.agent = agent;
+        this.gameInstance = gameInstance;
+        this.publishInterval = Math.max(1, publishInterval);
+        this.capacity = capacity;
+        this.stateSize = agent.getConfig().getStateEncoding().size();
+        this.states = new float[capacity * stateSize];
+        this.nextStates = new float[capacity * stateSize];
+        this.actions = new Direction[capacity];
+        this.rewards = new double[capacity];
+        this.done = new boolean[capacity];
+    }
+
+    /**
+     * Queues a transition for the learner. The states are copied, so callers may reuse their buffers. Only one
+     * thread may submit, and only while {@link #getQueueDepth()} is below the capacity.
+     */
+    public void submit(float[] state, Direction action, double reward, float[] nextState, boolean done) {
+        long position = tail.get();
+        if (position - head.get() >= capacity) {
+            throw new IllegalStateException("Learner queue is full");
+        }
+        int slot = (int) (position % capacity);
+        System.arraycopy(state, 0, states, slot * stateSize, stateSize);
+        System.arraycopy(nextState, 0, nextStates, slot * stateSize, stateSize);
+        actions[slot] = action;
+        rewards[slot] = reward;
+        this.done[slot] = done;
+        tail.lazySet(position + 1); // Publishes the slot; the learner reads tail before the slot
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (gameInstance.isEnabled() && (!finishing || head.get() < tail.get())) {
+                long position = head.get();
+                if (position == tail.get()) {
+                    agent.serveSnapshotRequests();
+                    LockSupport.parkNanos(IDLE_PARK_NANOS);
+                    continue;
+                }
+
+                // Same ratio as before the split: one gradient step per collected transition
+                int slot = (int) (position % capacity);
+                agent.remember(states, slot * stateSize, actions[slot], rewards[slot], nextStates, slot * stateSize, done[slot]);
+                head.lazySet(position + 1); // The slot is copied into replay, the actor may overwrite it
+                if (agent.replay()) {
+                    long steps = learnerSteps.incrementAndGet();
+                    if (steps % publishInterval == 0) {
+                        agent.publishWeights(steps);
+                    }
+                }
+            }
+        } finally {
+            agent.publishWeights(learnerSteps.get());
+            running = false;
+        }
+    }
+
+    /**
+     * Lets the learner finish whatever is still queued and exit.
+     */
+    public void finish() {
+        finishing = true;
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    public int getQueueDepth() {
+        return (int) (tail.get() - head.get());
+    }
+
+    public long getLearnerSteps() {
+        return learnerSteps.get();
+    }
+}
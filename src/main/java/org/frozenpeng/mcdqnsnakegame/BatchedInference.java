@@ -0,0 +1,62 @@
+package org.frozenpeng.mcdqnsnakegame;
+
+import java.util.Arrays;
+
+/**
+ * Coalesces the action requests of every AI board due on a tick into one greedy forward pass. Boards queue their
+ * state in {@link SessionController#prepare}, which the {@link GameManager} calls for all due sessions before stepping
+ * any of them, and the first board to ask for its action in {@link SessionController#step} runs the whole batch.
+ * {@link #beginTick} empties the batch at the start of every tick, whether or not the last one was evaluated.
+ * The network is evaluated once per tick however many boards are playing. Only used from the main thread.
+ */
+public class BatchedInference {
+
+    private final SnakeGameDQNAgent agent;
+    private final StateEncoding encoding;
+    private float[] states;
+    private Direction[] actions;
+    private int count;
+    private boolean computed;
+
+    public BatchedInference(SnakeGameDQNAgent agent) {
+        this.agent = agent;
+        this.encoding = agent.getConfig().getStateEncoding();
+        this.states = new float[16 * encoding.size()];
+        this.actions = new Direction[16];
+    }
+
+    /**
+     * Drops the states and actions of the previous tick.
+     */
+    public void beginTick() {
+        count = 0;
+        computed = false;
+    }
+
+    /**
+     * Queues the environment's current state for this tick's batch and returns its ticket for {@link #action}.
+     */
+    public int request(SnakeEnvironment environment) {
+        if (count == actions.length) {
+            actions = Arrays.copyOf(actions, count * 2);
+            states = Arrays.copyOf(states, count * 2 * encoding.size());
+        }
+        encoding.write(environment, states, count * encoding.size());
+        return count++;
+    }
+
+    /**
+     * The greedy action for a ticket handed out this tick. The first call evaluates every queued state at once.
+     */
+    public Direction action(int ticket) {
+        if (!computed) {
+            agent.getGreedyActions(states, count, actions);
+            computed = true;
+        }
+        return actions[ticket];
+    }
+
+    public SnakeGameDQNAgent getAgent() {
+        return agent;
+    }
+}
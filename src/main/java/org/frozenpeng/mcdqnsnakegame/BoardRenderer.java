@@ -0,0 +1,112 @@
+package org.frozenpeng.mcdqnsnakegame;
+
+import org.bukkit.Material;
+import org.bukkit.World;
+
+/**
+ * Draws a snake board into the world by diffing frames. Callers {@link #set} the cells a move touched,
+ * then {@link #flush} writes only the blocks whose material actually changed since the last flush,
+ * with physics updates suppressed. Setting the same cell several times before a flush costs one write at most.
+ */
+public class BoardRenderer {
+
+    public enum Cell {
+        EMPTY(Material.BLACK_CONCRETE),
+        HEAD(Material.GREEN_CONCRETE),
+        BODY(Material.LIME_CONCRETE),
+        FOOD(Material.RED_CONCRETE);
+
+        private final Material material;
+
+        Cell(Material material) {
+            this.material = material;
+        }
+
+        public Material getMaterial() {
+            return material;
+        }
+    }
+
+    private final World world;
+    private final int originX;
+    private final int originY;
+    private final int originZ;
+    private final int width;
+    private final int height;
+
+    private final Cell[] shown;   // What the world currently shows
+    private final Cell[] pending; // What the next flush should show
+    private final int[] dirty;
+    private final boolean[] isDirty;
+    private int dirtyCount;
+
+    public BoardRenderer(World world, int originX, int originY, int originZ, int width, int height) {
+        this.world = world;
+        this.originX = originX;
+        this.originY = originY;
+        this.originZ = originZ;
+        this.width = width;
+        this.height = height;
+        this.shown = new Cell[width * height];
+        this.pending = new Cell[width * height];
+        this.dirty = new int[width * height];
+        this.isDirty = new boolean[width * height];
+    }
+
+    /**
+     * Paints the whole board once: an air ring around an empty floor. Everything after this is incremental.
+     */
+    public void drawBoard() {
+        for (int x = -1; x <= width; x++) {
+            for (int z = -1; z <= height; z++) {
+                if (x == -1 || x == width || z == -1 || z == height) {
+                    world.getBlockAt(originX + x, originY, originZ + z).setType(Material.AIR, false);
+                } else {
+                    world.getBlockAt(originX + x, originY, originZ + z).setType(Cell.EMPTY.getMaterial(), false);
+                    shown[index(x, z)] = Cell.EMPTY;
+                    pending[index(x, z)] = Cell.EMPTY;
+                    isDirty[index(x, z)] = false;
+                }
+            }
+        }
+        dirtyCount = 0;
+    }
+
+    /**
+     * Queues a cell for the next flush. Cells outside the floor (a head that just hit the wall) are ignored.
+     */
+    public void set(int x, int z, Cell cell) {
+        if (x < 0 || x >= width || z < 0 || z >= height) {
+            return;
+        }
+        int index = index(x, z);
+        pending[index] = cell;
+        if (!isDirty[index]) {
+            isDirty[index] = true;
+            dirty[dirtyCount++] = index;
+        }
+    }
+
+    /**
+     * Writes the queued changes to the world and returns how many blocks were actually set.
+     */
+    public int flush() {
+        int written = 0;
+        for (int i = 0; i < dirtyCount; i++) {
+            int index = dirty[i];
+            isDirty[index] = false;
+            if (pending[index] != shown[index]) {
+                world.getBlockAt(originX + index / height, originY, originZ + index % height)
+                        .setType(pending[index].getMaterial(), false);
+                shown[index] = pending[index];
+                written++;
+            }
+        }
+        dirtyCount = 0;
+        return written;
+    }
+
+    private int index(int x, int z) {
+        return x * height + z;
+    }
+}
@@ -0,0 +1,208 @@
+package org.frozenpeng.mcdqnsnakegame;
+
+import org.deeplearning4j.nn.conf.MultiLayerConfiguration;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.deeplearning4j.util.ModelSerializer;
+import org.nd4j.linalg.api.ndarray.INDArray;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Saves the model without stalling the server. The caller's thread only queues a request: while the agent trains,
+ * the training thread copies the parameters and updater state between two gradient steps, otherwise the writer
+ * copies them itself. Rebuilding the network, zipping it and writing it happen on a single background writer.
+ * Every file is written
+ * to a {@code .tmp} sibling and atomically renamed into place, so a crash mid-write never leaves a truncated
+ * {@code model.zip}. Besides {@code model.zip}, the last {@code keep} checkpoints are kept as
+ * {@code checkpoints/model-<timestamp>.zip}.
+ */
+public class CheckpointManager {
+
+    private static final String CHECKPOINT_PREFIX = "model-";
+    private static final String CHECKPOINT_SUFFIX = ".zip";
+    private static final long SNAPSHOT_POLL_MILLIS = 100; // Between the writer's checks whether training has stopped
+
+    private final File modelFile;
+    private final File checkpointDirectory;
+    private final int keep;
+    private final long everyEpisodes;
+    private final long everySteps;
+
+    private final AtomicLong episodes = new AtomicLong();
+    private final AtomicLong steps = new AtomicLong();
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "SnakeGame checkpoint writer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * @param keep          versioned checkpoints to keep next to model.zip, 0 for none
+     * @param everyEpisodes auto-save after this many finished training episodes, 0 to disable
+     * @param everySteps    auto-save after this many training steps, 0 to disable
+     */
+    public CheckpointManager(File modelFile, int keep, long everyEpisodes, long everySteps) {
+        this.modelFile = modelFile;
+        this.checkpointDirectory = new File(modelFile.getParentFile(), "checkpoints");
+        this.keep = Math.max(0, keep);
+        this.everyEpisodes = Math.max(0, everyEpisodes);
+        this.everySteps = Math.max(0, everySteps);
+    }
+
+    /**
+     * Queues a checkpoint of the agent's network. Returns at once; the copy is taken off the calling thread.
+     */
+    public Future<?> save(SnakeGameDQNAgent agent) {
+        Future<Snapshot> snapshot = agent.requestSnapshot();
+        return writer.submit(() -> {
+            try {
+                write(awaitSnapshot(agent, snapshot));
+            } catch (ExecutionException e) {
+                System.err.println("Error copying the model for a checkpoint");
+                e.getCause().printStackTrace();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+    }
+
+    // The training thread serves the request after its next gradient step; once training stops, the writer does
+    private static Snapshot awaitSnapshot(SnakeGameDQNAgent agent, Future<Snapshot> snapshot)
+            throws ExecutionException, InterruptedException {
+        while (!snapshot.isDone()) {
+            if (!agent.isTraining()) {
+                agent.serveSnapshotRequests();
+            } else {
+                try {
+                    return snapshot.get(SNAPSHOT_POLL_MILLIS, TimeUnit.MILLISECONDS);
+                } catch (TimeoutException e) {
+                    // Check again whether training is still running
+                }
+            }
+        }
+        return snapshot.get();
+    }
+
+    public void onEpisodeFinished(SnakeGameDQNAgent agent) {
+        if (everyEpisodes > 0 && episodes.incrementAndGet() % everyEpisodes == 0) {
+            save(agent);
+        }
+    }
+
+    public void onTrainingStep(SnakeGameDQNAgent agent) {
+        if (everySteps > 0 && steps.incrementAndGet() % everySteps == 0) {
+            save(agent);
+        }
+    }
+
+    /**
+     * Waits for queued checkpoints to finish writing and stops the writer thread.
+     */
+    public void close() {
+        writer.shutdown();
+        try {
+            if (!writer.awaitTermination(1, TimeUnit.MINUTES)) {
+                System.err.println("Timed out waiting for model checkpoints to be written");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void write(Snapshot snapshot) {
+        try {
+            MultiLayerNetwork network = new MultiLayerNetwork(snapshot.configuration);
+            network.init(snapshot.params, false);
+            if (snapshot.updaterState != null) {
+                network.getUpdater().setStateViewArray(network, snapshot.updaterState, false);
+            }
+
+            modelFile.getParentFile().mkdirs();
+            File written = modelFile;
+            if (keep > 0) {
+                checkpointDirectory.mkdirs();
+                String timestamp = new SimpleDateFormat("yyyyMMdd-HHmmss-SSS").format(new Date(snapshot.createdAt));
+                written = new File(checkpointDirectory, CHECKPOINT_PREFIX + timestamp + CHECKPOINT_SUFFIX);
+            }
+            writeAtomically(network, written);
+            if (written != modelFile) {
+                // model.zip always holds the newest checkpoint, still swapped in atomically
+                Path temp = tempFileFor(modelFile);
+                Files.copy(written.toPath(), temp, StandardCopyOption.REPLACE_EXISTING);
+                moveAtomically(temp, modelFile.toPath());
+                deleteOldCheckpoints();
+            }
+            System.out.println("Model checkpoint saved to: " + written);
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Error saving model checkpoint to " + modelFile);
+            e.printStackTrace();
+        }
+    }
+
+    private void writeAtomically(MultiLayerNetwork network, File destination) throws IOException {
+        Path temp = tempFileFor(destination);
+        try {
+            ModelSerializer.writeModel(network, temp.toFile(), true);
+            moveAtomically(temp, destination.toPath());
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private static Path tempFileFor(File file) {
+        return new File(file.getParentFile(), file.getName() + ".tmp").toPath();
+    }
+
+    private static void moveAtomically(Path source, Path destination) throws IOException {
+        try {
+            Files.move(source, destination, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source, destination, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    // Timestamped names sort chronologically, so everything before the last `keep` goes
+    private void deleteOldCheckpoints() {
+        File[] checkpoints = checkpointDirectory.listFiles((dir, name) -> name.startsWith(CHECKPOINT_PREFIX) && name.endsWith(CHECKPOINT_SUFFIX));
+        if (checkpoints == null || checkpoints.length <= keep) {
+            return;
+        }
+        Arrays.sort(checkpoints);
+        for (int i = 0; i < checkpoints.length - keep; i++) {
+            if (!checkpoints[i].delete()) {
+                System.err.println("Could not delete old model checkpoint " + checkpoints[i]);
+            }
+        }
+    }
+
+    /**
+     * Everything needed to rebuild the network, copied out of the live model.
+     */
+    static class Snapshot {
+        final MultiLayerConfiguration configuration;
+        final INDArray params;
+        final INDArray updaterState;
+        final long createdAt = System.currentTimeMillis();
+
+        Snapshot(MultiLayerConfiguration configuration, INDArray params, INDArray updaterState) {
+            this.configuration = configuration;
+            this.params = params;
+            this.updaterState = updaterState;
+        }
+    }
+}
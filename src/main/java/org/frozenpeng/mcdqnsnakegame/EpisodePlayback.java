@@ -0,0 +1,47 @@
+package org.frozenpeng.mcdqnsnakegame;
+
+/**
+ * Plays a recorded game back on a board, one recorded action per step. Start the session with
+ * {@link #getSeed()} and {@link #getInitialDirection()} so the food lands where it did originally.
+ */
+public class EpisodePlayback implements SessionController {
+
+    private static final Direction[] DIRECTIONS = Direction.values();
+
+    private final long seed;
+    private final Direction initialDirection;
+    private final byte[] actions;
+    private int step;
+
+    /**
+     * Copies the reader's current game.
+     */
+    public EpisodePlayback(EpisodeReader episode) {
+        this.seed = episode.getSeed();
+        this.initialDirection = episode.getInitialDirection();
+        this.actions = episode.copyActions();
+    }
+
+    @Override
+    public void step(GameSession session) {
+        if (session.isGameOver() || step == actions.length) {
+            session.close();
+            return;
+        }
+        session.moveSnake(DIRECTIONS[actions[step++]]);
+        session.tick();
+    }
+
+    @Override
+    public boolean isRecorded() {
+        return false;
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    public Direction getInitialDirection() {
+        return initialDirection;
+    }
+}
@@ -0,0 +1,146 @@
+package org.frozenpeng.mcdqnsnakegame;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Streams the games of an {@link EpisodeRecorder} log one at a time through a reused buffer, so logs of any size
+ * read at disk speed in constant memory. {@link #restart} and {@link #getAction} re-simulate the current game
+ * exactly on any {@link SnakeEnvironment}.
+ */
+public class EpisodeReader implements Closeable {
+
+    private static final Direction[] DIRECTIONS = Direction.values();
+
+    private final DataInputStream in;
+    private long validLength = EpisodeRecorder.HEADER_SIZE;
+
+    private long seed;
+    private Direction initialDirection;
+    private int flags;
+    private int initialFood;
+    private int score;
+    private int steps;
+    private byte[] actions = new byte[1024];
+
+    public EpisodeReader(File file) throws IOException {
+        in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+        try {
+            if (in.readInt() != EpisodeRecorder.MAGIC || in.readInt() != EpisodeRecorder.VERSION) {
+                throw new IOException("Not an episode log: " + file);
+            }
+        } catch (EOFException e) {
+            in.close();
+            throw new IOException("Not an episode log: " + file);
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Moves to the next recorded game. Returns false at the end of the log, including when the last record was cut
+     * short by a crash. Throws {@link CorruptRecordException} if the next record can't be a game.
+     */
+    public boolean next() throws IOException {
+        try {
+            seed = in.readLong();
+            int direction = in.readUnsignedByte();
+            flags = in.readUnsignedByte();
+            initialFood = in.readShort();
+            score = in.readInt();
+            steps = in.readInt();
+            if (direction >= DIRECTIONS.length || steps < 0) {
+                throw new CorruptRecordException(validLength);
+            }
+            initialDirection = DIRECTIONS[direction];
+            if (steps > actions.length) {
+                actions = new byte[Math.max(steps, actions.length * 2)];
+            }
+            in.readFully(actions, 0, steps);
+        } catch (EOFException e) {
+            return false;
+        }
+        for (int i = 0; i < steps; i++) {
+            if ((actions[i] & 0xFF) >= DIRECTIONS.length) {
+                throw new CorruptRecordException(validLength);
+            }
+        }
+        validLength += EpisodeRecorder.RECORD_HEADER_SIZE + steps;
+        return true;
+    }
+
+    /**
+     * Resets environment to the start of the current game. Returns false if the seed no longer produces the recorded
+     * food, i.e. the game rules changed since it was recorded and the actions would replay a different game.
+     */
+    public boolean restart(SnakeEnvironment environment) {
+        environment.reset(initialDirection, seed);
+        return environment.getFoodCell() == initialFood;
+    }
+
+    public Direction getAction(int step) {
+        return DIRECTIONS[actions[step]];
+    }
+
+    public int getSteps() {
+        return steps;
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    public Direction getInitialDirection() {
+        return initialDirection;
+    }
+
+    public boolean isAiControlled() {
+        return (flags & EpisodeRecorder.AI_CONTROLLED) != 0;
+    }
+
+    /**
+     * False if the session was closed before the snake died.
+     */
+    public boolean isGameOver() {
+        return (flags & EpisodeRecorder.GAME_OVER) != 0;
+    }
+
+    public int getScore() {
+        return score;
+    }
+
+    /**
+     * The current game's actions as ordinals, copied out of the reused buffer.
+     */
+    public byte[] copyActions() {
+        return Arrays.copyOf(actions, steps);
+    }
+
+    /**
+     * Bytes up to the end of the last complete record read so far.
+     */
+    long getValidLength() {
+        return validLength;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    /**
+     * A record with an impossible direction, action or step count, e.g. half-written bytes a crash left behind.
+     */
+    public static class CorruptRecordException extends IOException {
+        CorruptRecordException(long validLength) {
+            super("Corrupt episode record after byte " + validLength);
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package org.frozenpeng.mcdqnsnakegame;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Appends finished games to a compact binary log. A game is fully determined by the seed its
+ * {@link SnakeEnvironment} was reset with and the actions it was given, so that is all that is stored:
+ * <pre>
+ *   file:   int magic "SNEP", int version
+ *   record: long seed, byte initial direction, byte flags (1 AI-controlled, 2 game over), short initial food cell,
+ *           int score, int steps, then one byte per step: the {@link Direction} ordinal
+ * </pre>
+ * A 200-step game takes 220 bytes. Records are written by a single background thread. A record cut short or garbled
+ * by a crash is dropped, with everything after it, when the log is reopened. {@link EpisodeReader} streams the log back.
+ */
+public class EpisodeRecorder {
+
+    static final int MAGIC = 0x534E4550; // "SNEP"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 8;
+    static final int RECORD_HEADER_SIZE = 20;
+    static final int AI_CONTROLLED = 1;
+    static final int GAME_OVER = 2;
+
+    private final File file;
+    private final FileChannel channel;
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "SnakeGame episode writer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Opens the log for appending, creating it if needed. Throws if the file exists but isn't an episode log (wrong
+     * magic or version); a corrupt record only truncates the log there.
+     */
+    public EpisodeRecorder(File file) throws IOException {
+        this.file = file;
+        long validLength = 0;
+        if (file.length() > 0) {
+            try (EpisodeReader reader = new EpisodeReader(file)) {
+                try {
+                    while (reader.next()) {
+                        // Only looking for the end of the last complete record
+                    }
+                } catch (EpisodeReader.CorruptRecordException e) {
+                    System.err.println(e.getMessage() + " in episode log " + file + ", dropping the rest of the log");
+                }
+                validLength = reader.getValidLength();
+            }
+        }
+
+        file.getAbsoluteFile().getParentFile().mkdirs();
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        if (validLength == 0) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putInt(VERSION);
+            header.flip();
+            channel.truncate(0);
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+            validLength = HEADER_SIZE;
+        }
+        channel.truncate(validLength);
+        channel.position(validLength);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Starts collecting a game for this log. One per {@link GameSession}, reused for every game it plays.
+     */
+    public Recording newRecording() {
+        return new Recording();
+    }
+
+    /**
+     * Waits for queued records to be written and closes the file.
+     */
+    public void close() {
+        writer.shutdown();
+        try {
+            if (!writer.awaitTermination(1, TimeUnit.MINUTES)) {
+                System.err.println("Timed out waiting for recorded episodes to be written");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            System.err.println("Error closing episode log " + file);
+            e.printStackTrace();
+        }
+    }
+
+    private void write(ByteBuffer record) {
+        try {
+            while (record.hasRemaining()) {
+                channel.write(record);
+            }
+        } catch (IOException e) {
+            System.err.println("Error writing to episode log " + file);
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * The game in progress on one session: seed, start and the actions so far. Only touched from the main thread.
+     */
+    public class Recording {
+        private long seed;
+        private Direction initialDirection;
+        private int initialFood;
+        private byte[] actions = new byte[256];
+        private int steps;
+        private boolean active;
+
+        private Recording() {
+        }
+
+        public void start(long seed, Direction initialDirection, int initialFood) {
+            this.seed = seed;
+            this.initialDirection = initialDirection;
+            this.initialFood = initialFood;
+            this.steps = 0;
+            this.active = true;
+        }
+
+        public void add(Direction action) {
+            if (!active) {
+                return;
+            }
+            if (steps == actions.length) {
+                actions = Arrays.copyOf(actions, actions.length * 2);
+            }
+            actions[steps++] = (byte) action.ordinal();
+        }
+
+        /**
+         * Queues the game for writing, unless it never got a single step. Further actions are ignored until the
+         * next {@link #start}.
+         */
+        public void finish(boolean aiControlled, boolean gameOver, int score) {
+            if (!active) {
+                return;
+            }
+            active = false;
+            if (steps == 0) {
+                return;
+            }
+
+            ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + steps)
+                    .putLong(seed)
+                    .put((byte) initialDirection.ordinal())
+                    .put((byte) ((aiControlled ? AI_CONTROLLED : 0) | (gameOver ? GAME_OVER : 0)))
+                    .putShort((short) initialFood)
+                    .putInt(score)
+                    .putInt(steps)
+                    .put(actions, 0, steps);
+            record.flip();
+            writer.execute(() -> write(record));
+        }
+    }
+}
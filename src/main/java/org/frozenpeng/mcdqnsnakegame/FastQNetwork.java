@@ -0,0 +1,199 @@
+package org.frozenpeng.mcdqnsnakegame;
+
+import org.deeplearning4j.nn.conf.MultiLayerConfiguration;
+import org.deeplearning4j.nn.conf.layers.BaseLayer;
+import org.deeplearning4j.nn.conf.layers.DenseLayer;
+import org.deeplearning4j.nn.conf.layers.Layer;
+import org.deeplearning4j.nn.conf.layers.OutputLayer;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.nd4j.linalg.activations.impl.ActivationIdentity;
+import org.nd4j.linalg.activations.impl.ActivationReLU;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+
+import java.util.Arrays;
+
+/**
+ * Forward pass of a small dense Q-network in plain Java. For the 8-64-4 policy a {@code model.output()} call
+ * is almost all ND4J dispatch and native allocation; here the weights live in {@code float[]}s laid out so
+ * each output unit is one contiguous dot product, and activations go into scratch buffers allocated once.
+ * <p>
+ * Only stacks of dense/output layers with ReLU or identity activations are supported (see {@link #supports}).
+ * Weights are copied, so call {@link #load} again whenever the source network changes. A network can also be
+ * read from a {@link PolicyFile} without ND4J. Not thread-safe: the scratch buffers are shared between calls.
+ */
+public class FastQNetwork {
+
+    private final int[] sizes;        // sizes[0] inputs, sizes[i + 1] outputs of layer i
+    private final float[][] weights;  // weights[i][out * nIn + in]
+    private final float[][] biases;
+    private final boolean[] relu;
+    private final float[][] activations;
+
+    public FastQNetwork(MultiLayerNetwork network) {
+        if (!supports(network)) {
+            throw new IllegalArgumentException("Only dense ReLU/identity networks can be evaluated in Java");
+        }
+        int layers = network.getnLayers();
+        MultiLayerConfiguration configuration = network.getLayerWiseConfigurations();
+        sizes = new int[layers + 1];
+        weights = new float[layers][];
+        biases = new float[layers][];
+        relu = new boolean[layers];
+        activations = new float[layers][];
+        for (int i = 0; i < layers; i++) {
+            long[] shape = network.getLayer(i).getParam("W").shape();
+            sizes[i] = (int) shape[0];
+            sizes[i + 1] = (int) shape[1];
+            weights[i] = new float[sizes[i] * sizes[i + 1]];
+            biases[i] = new float[sizes[i + 1]];
+            relu[i] = ((BaseLayer) configuration.getConf(i).getLayer()).getActivationFn() instanceof ActivationReLU;
+            activations[i] = new float[sizes[i + 1]];
+        }
+        load(network);
+    }
+
+    /**
+     * A network from raw weights, laid out as described on {@link #weights}. Used by {@link PolicyFile}.
+     */
+    FastQNetwork(int[] sizes, float[][] weights, float[][] biases, boolean[] relu) {
+        this.sizes = sizes;
+        this.weights = weights;
+        this.biases = biases;
+        this.relu = relu;
+        this.activations = new float[weights.length][];
+        for (int i = 0; i < weights.length; i++) {
+            activations[i] = new float[sizes[i + 1]];
+        }
+    }
+
+    /**
+     * Whether every layer is a dense or output layer with ReLU or identity activation and no input preprocessors.
+     */
+    public static boolean supports(MultiLayerNetwork network) {
+        MultiLayerConfiguration configuration = network.getLayerWiseConfigurations();
+        if (!configuration.getInputPreProcessors().isEmpty()) {
+            return false;
+        }
+        for (int i = 0; i < network.getnLayers(); i++) {
+            Layer layer = configuration.getConf(i).getLayer();
+            if (!(layer instanceof DenseLayer || layer instanceof OutputLayer)) {
+                return false;
+            }
+            Object activation = ((BaseLayer) layer).getActivationFn();
+            if (!(activation instanceof ActivationReLU || activation instanceof ActivationIdentity)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Copies the current weights of a network with the same architecture.
+     */
+    public void load(MultiLayerNetwork network) {
+        for (int i = 0; i < weights.length; i++) {
+            // W is [nIn, nOut]; store it transposed so output unit j reads weights[i][j * nIn .. (j + 1) * nIn)
+            float[][] w = network.getLayer(i).getParam("W").toFloatMatrix();
+            int nIn = sizes[i];
+            int nOut = sizes[i + 1];
+            if (w.length != nIn || w[0].length != nOut) {
+                throw new IllegalArgumentException("Network architecture changed, create a new FastQNetwork");
+            }
+            for (int in = 0; in < nIn; in++) {
+                for (int out = 0; out < nOut; out++) {
+                    weights[i][out * nIn + in] = w[in][out];
+                }
+            }
+            System.arraycopy(network.getLayer(i).getParam("b").toFloatVector(), 0, biases[i], 0, nOut);
+        }
+    }
+
+    public int inputSize() {
+        return sizes[0];
+    }
+
+    /**
+     * Whether the layers have these sizes (inputs first, as in {@link #size}) and ReLU exactly where relu is true.
+     */
+    public boolean hasShape(int[] sizes, boolean[] relu) {
+        return Arrays.equals(this.sizes, sizes) && Arrays.equals(this.relu, relu);
+    }
+
+    int layerCount() {
+        return weights.length;
+    }
+
+    /**
+     * Inputs of layer i, or outputs of layer i - 1.
+     */
+    int size(int i) {
+        return sizes[i];
+    }
+
+    float[] weights(int layer) {
+        return weights[layer];
+    }
+
+    float[] biases(int layer) {
+        return biases[layer];
+    }
+
+    boolean isRelu(int layer) {
+        return relu[layer];
+    }
+
+    /**
+     * Q-values for the state at input[offset .. offset + inputSize). The returned array is reused by the next call.
+     */
+    public float[] output(float[] input, int offset) {
+        float[] x = input;
+        int xOffset = offset;
+        for (int i = 0; i < weights.length; i++) {
+            float[] w = weights[i];
+            float[] b = biases[i];
+            float[] y = activations[i];
+            int nIn = sizes[i];
+            int nOut = sizes[i + 1];
+            for (int out = 0, row = 0; out < nOut; out++, row += nIn) {
+                float sum = b[out];
+                for (int in = 0; in < nIn; in++) {
+                    sum += w[row + in] * x[xOffset + in];
+                }
+                y[out] = relu[i] && sum < 0 ? 0 : sum;
+            }
+            x = y;
+            xOffset = 0;
+        }
+        return x;
+    }
+
+    /**
+     * Index of the largest Q-value, first one on ties (same as ND4J's argMax).
+     */
+    public int bestAction(float[] input, int offset) {
+        float[] q = output(input, offset);
+        int best = 0;
+        for (int i = 1; i < q.length; i++) {
+            if (q[i] > q[best]) {
+                best = i;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Largest absolute difference between this network's Q-values and ND4J's for {@code count} row-major states.
+     */
+    public float maxDeviation(MultiLayerNetwork network, float[] states, int count) {
+        INDArray expected = network.output(Nd4j.create(states, new int[]{count, sizes[0]}));
+        float deviation = 0;
+        for (int row = 0; row < count; row++) {
+            float[] q = output(states, row * sizes[0]);
+            for (int action = 0; action < q.length; action++) {
+                deviation = Math.max(deviation, Math.abs(q[action] - expected.getFloat(row, action)));
+            }
+        }
+        return deviation;
+    }
+}
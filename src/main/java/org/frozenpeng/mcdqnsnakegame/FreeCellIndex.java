@@ -0,0 +1,67 @@
+package org.frozenpeng.mcdqnsnakegame;
+
+import java.util.Random;
+
+/**
+ * The set of board cells not covered by the snake, as a dense array plus a reverse index.
+ * Adding, removing (swap with the last entry) and picking a uniformly random cell are all O(1),
+ * so placing food costs the same whether the snake is 2 or 160 segments long.
+ */
+public class FreeCellIndex {
+
+    private final int[] cells;     // Free cells packed into [0, size)
+    private final int[] positions; // Where each cell sits in cells, -1 if it isn't free
+    private int size;
+
+    public FreeCellIndex(int boardCells) {
+        this.cells = new int[boardCells];
+        this.positions = new int[boardCells];
+        reset();
+    }
+
+    /**
+     * Marks every cell of the board as free.
+     */
+    public void reset() {
+        for (int cell = 0; cell < cells.length; cell++) {
+            cells[cell] = cell;
+            positions[cell] = cell;
+        }
+        size = cells.length;
+    }
+
+    public void add(int cell) {
+        if (positions[cell] >= 0) {
+            return;
+        }
+        cells[size] = cell;
+        positions[cell] = size;
+        size++;
+    }
+
+    public void remove(int cell) {
+        int position = positions[cell];
+        if (position < 0) {
+            return;
+        }
+        int last = cells[--size];
+        cells[position] = last;
+        positions[last] = position;
+        positions[cell] = -1;
+    }
+
+    public boolean contains(int cell) {
+        return positions[cell] >= 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * A uniformly random free cell, or -1 if the board is full.
+     */
+    public int randomCell(Random random) {
+        return size == 0 ? -1 : cells[random.nextInt(size)];
+    }
+}
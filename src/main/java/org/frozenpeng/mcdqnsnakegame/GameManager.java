@@ -0,0 +1,211 @@
+package org.frozenpeng.mcdqnsnakegame;
+
+import org.bukkit.Bukkit;
+import org.bukkit.World;
+import org.bukkit.entity.Player;
+import org.bukkit.scheduler.BukkitRunnable;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Owns every running {@link GameSession}. Each session gets its own non-overlapping board region, laid out
+ * in rows of {@code boards.per-row} boards starting at the configured origin, and all of them are stepped
+ * from one shared task that runs every tick.
+ * <p>
+ * Sessions either step every N ticks (player games) or are {@link #BUDGETED}: those are stepped round-robin,
+ * as many times as fit in the current {@link TickBudget}, which shrinks when the server's MSPT rises.
+ */
+public class GameManager extends BukkitRunnable {
+
+    public static final int BUDGETED = 0;
+
+    private static final int BOARD_FOOTPRINT_WIDTH = SnakeEnvironment.BOARD_WIDTH + 2; // Floor plus the air ring
+    private static final int BOARD_FOOTPRINT_HEIGHT = SnakeEnvironment.BOARD_HEIGHT + 2;
+
+    private final int originX;
+    private final int originY;
+    private final int originZ;
+    private final int boardsPerRow;
+    private final int spacing;
+
+    private final List<GameSession> sessions = new ArrayList<>();
+    private final Map<UUID, GameSession> playerSessions = new HashMap<>();
+    private final BitSet usedSlots = new BitSet();
+    private final TickBudget tickBudget;
+    private final SnakeMetrics metrics;
+    private EpisodeRecorder recorder; // null unless recording.enabled
+    private long currentTick;
+
+    public GameManager(Main plugin) {
+        this.originX = plugin.getConfig().getInt("boards.origin-x", 0);
+        this.originY = plugin.getConfig().getInt("boards.y", 72);
+        this.originZ = plugin.getConfig().getInt("boards.origin-z", 0);
+        this.boardsPerRow = Math.max(1, plugin.getConfig().getInt("boards.per-row", 8));
+        this.spacing = Math.max(0, plugin.getConfig().getInt("boards.spacing", 3));
+        this.tickBudget = new TickBudget(plugin.getConfig().getDouble("scheduler.tick-budget-ms", 10),
+                plugin.getConfig().getDouble("scheduler.min-budget-ms", 1),
+                plugin.getConfig().getDouble("scheduler.target-mspt", 40));
+        this.metrics = plugin.getMetrics();
+    }
+
+    /**
+     * Claims a free board region and starts a session on it. A player can only have one session,
+     * so starting a new one for them closes the old one.
+     */
+    public GameSession startSession(World world, Player player, int tickInterval, Direction initialDirection, SessionController controller) {
+        return startSession(world, player, tickInterval, initialDirection, ThreadLocalRandom.current().nextLong(), controller);
+    }
+
+    /**
+     * Like {@link #startSession(World, Player, int, Direction, SessionController)}, with the first game started
+     * from the given seed, e.g. to play back a recorded game.
+     */
+    public GameSession startSession(World world, Player player, int tickInterval, Direction initialDirection, long seed,
+                                    SessionController controller) {
+        if (player != null) {
+            GameSession previous = playerSessions.get(player.getUniqueId());
+            if (previous != null) {
+                closeSession(previous);
+            }
+        }
+
+        int slot = usedSlots.nextClearBit(0);
+        usedSlots.set(slot);
+        int boardX = originX + (slot % boardsPerRow) * (BOARD_FOOTPRINT_WIDTH + spacing);
+        int boardZ = originZ + (slot / boardsPerRow) * (BOARD_FOOTPRINT_HEIGHT + spacing);
+
+        GameSession session = new GameSession(slot, world, boardX, originY, boardZ, player, Math.max(BUDGETED, tickInterval), controller);
+        if (recorder != null && controller.isRecorded()) {
+            session.setRecorder(recorder);
+        }
+        session.start(initialDirection, seed);
+        // Painting the board writes its whole footprint, then the flush draws the snake and the food
+        metrics.recordBlockWrites(BOARD_FOOTPRINT_WIDTH * BOARD_FOOTPRINT_HEIGHT + session.flushDisplay());
+        sessions.add(session);
+        if (player != null) {
+            playerSessions.put(player.getUniqueId(), session);
+        }
+        return session;
+    }
+
+    @Override
+    public void run() {
+        long tickStart = System.nanoTime();
+        currentTick++;
+        tickBudget.adapt(Bukkit.getAverageTickTime());
+
+        // Controllers may start new sessions while we iterate, so walk a snapshot
+        List<GameSession> snapshot = new ArrayList<>(sessions);
+        for (GameSession session : snapshot) {
+            session.getController().beginTick();
+        }
+        for (GameSession session : snapshot) {
+            if (isDue(session)) {
+                session.getController().prepare(session);
+            }
+        }
+        for (GameSession session : snapshot) {
+            if (isDue(session)) {
+                session.getController().step(session);
+            }
+        }
+
+        // Budgeted sessions: every one gets at least one step, then round-robin until the budget is used up
+        long deadline = tickStart + tickBudget.getBudgetNanos();
+        boolean stepped;
+        do {
+            stepped = false;
+            for (GameSession session : snapshot) {
+                if (!session.isClosed() && session.isBudgeted() && session.getController().isReady(session)) {
+                    session.getController().step(session);
+                    stepped = true;
+                }
+            }
+        } while (stepped && System.nanoTime() < deadline);
+
+        int blockWrites = 0;
+        for (GameSession session : snapshot) {
+            blockWrites += session.flushDisplay();
+        }
+        metrics.recordBlockWrites(blockWrites);
+
+        Iterator<GameSession> iterator = sessions.iterator();
+        while (iterator.hasNext()) {
+            GameSession session = iterator.next();
+            if (session.isClosed()) {
+                iterator.remove();
+                release(session);
+            }
+        }
+
+        metrics.recordTick(System.nanoTime() - tickStart);
+    }
+
+    private boolean isDue(GameSession session) {
+        return !session.isClosed() && !session.isBudgeted() && currentTick % session.getTickInterval() == 0;
+    }
+
+    private void closeSession(GameSession session) {
+        session.close();
+        sessions.remove(session);
+        release(session);
+    }
+
+    private void release(GameSession session) {
+        usedSlots.clear(session.getSlot());
+        if (session.getPlayer() != null) {
+            playerSessions.remove(session.getPlayer().getUniqueId(), session);
+        }
+    }
+
+    /**
+     * Closes every session, which also hands their unfinished games to the episode log.
+     */
+    public void closeAllSessions() {
+        for (GameSession session : new ArrayList<>(sessions)) {
+            closeSession(session);
+        }
+    }
+
+    /**
+     * Records the games of sessions started from now on to recorder's log, or stops recording if it is null.
+     */
+    public void setEpisodeRecorder(EpisodeRecorder recorder) {
+        this.recorder = recorder;
+    }
+
+    /**
+     * The player's running session, or null if they have none.
+     */
+    public GameSession getSession(Player player) {
+        return playerSessions.get(player.getUniqueId());
+    }
+
+    public int getSessionCount() {
+        return sessions.size();
+    }
+
+    /**
+     * Running sessions driven by a controller of the given type.
+     */
+    public int getSessionCount(Class<? extends SessionController> controllerType) {
+        int count = 0;
+        for (GameSession session : sessions) {
+            if (!session.isClosed() && controllerType.isInstance(session.getController())) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public TickBudget getTickBudget() {
+        return tickBudget;
+    }
+}
@@ -0,0 +1,203 @@
+package org.frozenpeng.mcdqnsnakegame;
+
+import org.bukkit.Material;
+import org.bukkit.World;
+import org.bukkit.entity.Player;
+
+import java.util.Random;
+
+/**
+ * One snake game on its own board in the world: the in-memory {@link SnakeEnvironment}, the renderer for its
+ * board region and whoever controls it. Sessions are created and ticked by the {@link GameManager}.
+ */
+public class GameSession {
+
+    private final int slot;
+    private final World world;
+    private final int originX;
+    private final int originY;
+    private final int originZ;
+    private final Player player;
+    private final int tickInterval;
+    private final SessionController controller;
+
+    private final SnakeEnvironment game = new SnakeEnvironment();
+    private final Random seeds = new Random(); // Every game gets its own seed, so it can be recorded and replayed
+    private final BoardRenderer renderer;
+    private EpisodeRecorder.Recording recording; // null when games aren't recorded
+    private int previousHead;
+    private int previousTail;
+    private boolean closed;
+
+    GameSession(int slot, World world, int originX, int originY, int originZ, Player player, int tickInterval, SessionController controller) {
+        this.slot = slot;
+        this.world = world;
+        this.originX = originX;
+        this.originY = originY;
+        this.originZ = originZ;
+        this.player = player;
+        this.tickInterval = tickInterval;
+        this.controller = controller;
+        this.renderer = new BoardRenderer(world, originX, originY, originZ, SnakeEnvironment.BOARD_WIDTH, SnakeEnvironment.BOARD_HEIGHT);
+    }
+
+    /**
+     * Records every game this session plays to the recorder's log. Call before {@link #start}.
+     */
+    void setRecorder(EpisodeRecorder recorder) {
+        recording = recorder.newRecording();
+    }
+
+    /**
+     * Paints the board and starts the first game from the given seed.
+     */
+    void start(Direction initialDirection, long seed) {
+        renderer.drawBoard();
+        restart(initialDirection, seed);
+    }
+
+    /**
+     * Starts a new game on the same board, only rewriting the cells the previous game left behind.
+     */
+    public void restart(Direction initialDirection) {
+        restart(initialDirection, seeds.nextLong());
+    }
+
+    /**
+     * Like {@link #restart(Direction)}, with food placed as in every other game started from this seed.
+     */
+    public void restart(Direction initialDirection, long seed) {
+        finishRecording();
+        game.reset(initialDirection, seed);
+        if (recording != null) {
+            recording.start(seed, initialDirection, game.getFoodCell());
+        }
+        for (int cell = 0; cell < SnakeEnvironment.BOARD_WIDTH * SnakeEnvironment.BOARD_HEIGHT; cell++) {
+            renderCell(cell, BoardRenderer.Cell.EMPTY);
+        }
+        renderCell(game.getHeadCell(), BoardRenderer.Cell.HEAD);
+        renderCell(game.getFoodCell(), BoardRenderer.Cell.FOOD);
+    }
+
+    public void moveSnake(Direction direction) {
+        previousHead = game.getHeadCell();
+        previousTail = game.getTailCell();
+        game.moveSnake(direction);
+        if (recording != null) {
+            recording.add(direction);
+        }
+    }
+
+    public void tick() {
+        game.tick();
+        if (game.isGameOver()) {
+            finishRecording();
+            return;
+        }
+
+        updateDisplay();
+    }
+
+    // Only the cells the last move touched are queued: the vacated tail (unless the snake just grew
+    // or the head moved into it), the old head, the new head and the food. Nothing reaches the world
+    // until flushDisplay(), so several steps in one tick cost at most one write per changed block.
+    private void updateDisplay() {
+        if (!game.isOccupied(previousTail)) {
+            renderCell(previousTail, BoardRenderer.Cell.EMPTY);
+        }
+        if (game.getLength() > 1) {
+            renderCell(previousHead, BoardRenderer.Cell.BODY);
+        }
+        renderCell(game.getHeadCell(), BoardRenderer.Cell.HEAD);
+        if (game.getFoodCell() >= 0) {
+            renderCell(game.getFoodCell(), BoardRenderer.Cell.FOOD);
+        }
+    }
+
+    /**
+     * Writes everything queued since the last flush to the world. The {@link GameManager} calls this once per tick.
+     */
+    public int flushDisplay() {
+        return renderer.flush();
+    }
+
+    // Hands the current game to the log; a game is only written once, however it ends
+    private void finishRecording() {
+        if (recording != null) {
+            recording.finish(isAiControlled(), game.isGameOver(), game.getScore());
+        }
+    }
+
+    private void renderCell(int cell, BoardRenderer.Cell type) {
+        renderer.set(SnakeEnvironment.cellX(cell), SnakeEnvironment.cellZ(cell), type);
+    }
+
+    /**
+     * Writes the current state into dst (at least 8 floats) straight from the in-memory game, without world reads
+     * or allocation. See {@link SnakeEnvironment#writeStateInfo} for the features.
+     */
+    public void getStateInfo(float[] dst) {
+        game.writeStateInfo(dst, 0);
+    }
+
+    public boolean isGameOver() {
+        return game.isGameOver();
+    }
+
+    public SnakeEnvironment getGame() {
+        return game;
+    }
+
+    /**
+     * Block at board coordinates (x, z), read from the world.
+     */
+    public Material getBlockTypeAt(int x, int z) {
+        return world.getBlockAt(originX + x, originY, originZ + z).getType();
+    }
+
+    /**
+     * The player steering this session, or null if it is AI-controlled.
+     */
+    public Player getPlayer() {
+        return player;
+    }
+
+    public boolean isAiControlled() {
+        return player == null;
+    }
+
+    public SessionController getController() {
+        return controller;
+    }
+
+    /**
+     * Ticks between steps, or {@link GameManager#BUDGETED} for as many steps per tick as the tick budget allows.
+     */
+    public int getTickInterval() {
+        return tickInterval;
+    }
+
+    public boolean isBudgeted() {
+        return tickInterval == GameManager.BUDGETED;
+    }
+
+    int getSlot() {
+        return slot;
+    }
+
+    /**
+     * Stops ticking this session. The board keeps showing the final position until its region is reused.
+     */
+    public void close() {
+        if (closed) {
+            return;
+        }
+        finishRecording();
+        closed = true;
+        controller.onClose(this);
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+}
@@ -0,0 +1,155 @@
+package org.frozenpeng.mcdqnsnakegame;
+
+import org.bukkit.configuration.ConfigurationSection;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+/**
+ * Trains one agent per {@link AgentConfig} in parallel on a fork-join pool, each on its own headless board with
+ * nothing rendered, and ranks the configurations by their rolling average score over the last 100 episodes.
+ * Only the best agent is kept around, so memory stays at about one replay buffer per worker.
+ */
+public class HyperparameterSweep {
+
+    private final List<AgentConfig> candidates;
+    private final int episodes;
+    private final int parallelism;
+
+    private final AtomicInteger finished = new AtomicInteger();
+    private SnakeGameDQNAgent bestAgent;
+    private double bestScore = Double.NEGATIVE_INFINITY;
+
+    public HyperparameterSweep(List<AgentConfig> candidates, int episodes, int parallelism) {
+        this.candidates = candidates;
+        this.episodes = episodes;
+        this.parallelism = parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * Every combination of the values listed under the sweep section (gamma, epsilon-decay, batch-size,
+     * replay-size, learning-rate, hidden-size). A key that is missing or empty keeps base's value.
+     */
+    public static List<AgentConfig> grid(ConfigurationSection section, AgentConfig base) {
+        List<AgentConfig> grid = Collections.singletonList(base);
+        if (section == null) {
+            return grid;
+        }
+        grid = expand(grid, section.getDoubleList("gamma"), AgentConfig::withGamma);
+        grid = expand(grid, section.getDoubleList("epsilon-decay"), AgentConfig::withEpsilonDecay);
+        grid = expand(grid, section.getIntegerList("batch-size"), AgentConfig::withBatchSize);
+        grid = expand(grid, section.getIntegerList("replay-size"), AgentConfig::withReplayMemorySize);
+        grid = expand(grid, section.getDoubleList("learning-rate"), AgentConfig::withLearningRate);
+        grid = expand(grid, section.getIntegerList("hidden-size"), AgentConfig::withHiddenLayerSize);
+        return grid;
+    }
+
+    private static <T> List<AgentConfig> expand(List<AgentConfig> grid, List<T> values, Setter<T> setter) {
+        if (values.isEmpty()) {
+            return grid;
+        }
+        List<AgentConfig> expanded = new ArrayList<>(grid.size() * values.size());
+        for (AgentConfig config : grid) {
+            for (T value : values) {
+                expanded.add(setter.apply(config, value));
+            }
+        }
+        return expanded;
+    }
+
+    private interface Setter<T> {
+        AgentConfig apply(AgentConfig config, T value);
+    }
+
+    /**
+     * Blocks until every configuration has trained and returns the results, best first. Training stops early
+     * (leaving partial results) once keepRunning turns false. One progress message per finished configuration goes to progress.
+     */
+    public List<Result> run(BooleanSupplier keepRunning, Consumer<String> progress) throws InterruptedException {
+        List<Callable<Result>> tasks = new ArrayList<>(candidates.size());
+        for (AgentConfig config : candidates) {
+            tasks.add(() -> train(config, keepRunning, progress));
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        List<Result> results = new ArrayList<>(candidates.size());
+        try {
+            for (Future<Result> future : pool.invokeAll(tasks)) {
+                try {
+                    results.add(future.get());
+                } catch (ExecutionException e) {
+                    System.err.println("Hyperparameter sweep run failed");
+                    e.getCause().printStackTrace();
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        results.sort(Comparator.comparingDouble(Result::getRollingScore).reversed());
+        return results;
+    }
+
+    private Result train(AgentConfig config, BooleanSupplier keepRunning, Consumer<String> progress) {
+        SnakeGameDQNAgent agent = new SnakeGameDQNAgent(config);
+        agent.enableJavaInference();
+        agent.trainHeadless(episodes, 1, keepRunning, null);
+
+        SnakeMetrics metrics = agent.getMetrics();
+        Result result = new Result(config, metrics.getRollingAverageScore(), metrics.snapshot().get("episodes").longValue());
+        synchronized (this) {
+            if (result.rollingScore > bestScore) {
+                bestScore = result.rollingScore;
+                bestAgent = agent;
+            }
+        }
+        if (progress != null) {
+            progress.accept(String.format("Sweep %d/%d: rolling score %.3f with %s",
+                    finished.incrementAndGet(), candidates.size(), result.rollingScore, config));
+        }
+        return result;
+    }
+
+    /**
+     * The trained agent with the highest rolling score, or null if nothing finished.
+     */
+    public synchronized SnakeGameDQNAgent getBestAgent() {
+        return bestAgent;
+    }
+
+    public int getCandidateCount() {
+        return candidates.size();
+    }
+
+    public static class Result {
+        private final AgentConfig config;
+        private final double rollingScore;
+        private final long episodes;
+
+        Result(AgentConfig config, double rollingScore, long episodes) {
+            this.config = config;
+            this.rollingScore = rollingScore;
+            this.episodes = episodes;
+        }
+
+        public AgentConfig getConfig() {
+            return config;
+        }
+
+        public double getRollingScore() {
+            return rollingScore;
+        }
+
+        public long getEpisodes() {
+            return episodes;
+        }
+    }
+}
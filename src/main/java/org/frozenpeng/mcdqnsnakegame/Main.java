@@ -1,70 +1,415 @@
 package org.frozenpeng.mcdqnsnakegame;
 
 import org.bukkit.Bukkit;
-import org.bukkit.Location;
-import org.bukkit.Material;
 import org.bukkit.World;
 import org.bukkit.command.Command;
 import org.bukkit.command.CommandSender;
+import org.bukkit.configuration.ConfigurationSection;
 import org.bukkit.entity.Player;
 import org.bukkit.event.Listener;
 import org.bukkit.plugin.java.JavaPlugin;
 import org.bukkit.scheduler.BukkitRunnable;
 import org.bukkit.util.Vector;
 import org.nd4j.common.config.ND4JClassLoading;
-import org.nd4j.linalg.api.ndarray.INDArray;
-import org.nd4j.linalg.factory.Nd4j;
 
 import java.io.File;
-import java.util.ArrayList;
+import java.io.IOException;
 import java.util.List;
-import java.util.Random;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class Main extends JavaPlugin implements Listener {
 
     public final File modelFile = new File(getDataFolder(), "/model.zip");
 
-    private static final int BOARD_WIDTH = 13;
-    private static final int BOARD_HEIGHT = 13;
     private static final int TICK_INTERVAL = 5;
 
-    private List<Location> snakeBody;
-    private List<Location> snakePositions;
-    private Location foodLocation;
-    private Direction currentDirection;
-    private Random random;
-    private boolean isGameOver;
-    private int score;
-    private World world;
-    private boolean aiControlled;
-    private SnakeGameDQNAgent dqnAgent;
+    private final SnakeMetrics metrics = new SnakeMetrics();
+    private GameManager gameManager;
+    private MetricsExporter metricsExporter;
+    private EpisodeRecorder episodeRecorder;
+    private BatchedInference aiInference; // Shared by every AI board, created with the first one
+
+    // Built off the main thread, see startLoadingAgent(); null until ready
+    private volatile SnakeGameDQNAgent dqnAgent;
+    private volatile CheckpointManager checkpoints;
+    private volatile Throwable agentLoadFailure;
+    private final AtomicBoolean agentLoading = new AtomicBoolean(false);
+    private final AtomicBoolean sweepRunning = new AtomicBoolean(false);
 
     @Override
     public void onEnable() {
 
+        saveDefaultConfig();
+        getServer().getPluginManager().registerEvents(this, this);
+
+        // One task steps every board
+        gameManager = new GameManager(this);
+        gameManager.runTaskTimer(this, 1, 1);
+
+        // Optionally log every game for playback and offline training
+        if (getConfig().getBoolean("recording.enabled", false)) {
+            File episodeLog = new File(getDataFolder(), getConfig().getString("recording.file", "episodes.bin"));
+            try {
+                episodeRecorder = new EpisodeRecorder(episodeLog);
+                gameManager.setEpisodeRecorder(episodeRecorder);
+            } catch (IOException e) {
+                System.err.println("Error opening episode log " + episodeLog + ", games won't be recorded");
+                e.printStackTrace();
+            }
+        }
+
+        // The DQN agent pulls in the ND4J native backend, so it never loads on the startup thread
+        if (getConfig().getBoolean("model.preload", true)) {
+            startLoadingAgent();
+        }
+
+        // Optionally stream metrics snapshots to the data folder
+        String export = getConfig().getString("metrics.export", "none");
+        if (export.equalsIgnoreCase("jsonl") || export.equalsIgnoreCase("csv")) {
+            long period = 20L * Math.max(1, getConfig().getInt("metrics.export-interval-seconds", 10));
+            metricsExporter = new MetricsExporter(metrics, MetricsExporter.Format.valueOf(export.toUpperCase()), getDataFolder());
+            metricsExporter.runTaskTimerAsynchronously(this, period, period);
+        }
+    }
+
+    @Override
+    public void onDisable() {
+        if (gameManager != null) {
+            gameManager.closeAllSessions();
+        }
+        if (episodeRecorder != null) {
+            episodeRecorder.close();
+        }
+        if (metricsExporter != null) {
+            metricsExporter.cancel();
+            metricsExporter.close();
+        }
+        // Final save; the server waits for it to be written. Nothing to save if the model never finished loading
+        SnakeGameDQNAgent agent = dqnAgent;
+        if (agent != null) {
+            // A policy-only server never loaded model.zip, so an untouched network must not overwrite it
+            if (agent.hasTrainedModel()) {
+                checkpoints.save(agent);
+            }
+            checkpoints.close();
+            if (agent.getReplayStore() != null) {
+                agent.getReplayStore().close();
+            }
+        }
+    }
+
+    /**
+     * Builds the agent and loads the saved model on an async thread, once. Commands that need the agent
+     * report that it is loading until it is ready.
+     */
+    private void startLoadingAgent() {
+        if (!agentLoading.compareAndSet(false, true)) {
+            return;
+        }
+        new BukkitRunnable() {
+            @Override
+            public void run() {
+                try {
+                    loadAgent();
+                } catch (Throwable t) {
+                    agentLoadFailure = t;
+                    System.err.println("Error loading the Snake AI model");
+                    t.printStackTrace();
+                }
+            }
+        }.runTaskAsynchronously(this);
+    }
+
+    private void loadAgent() {
+        long start = System.nanoTime();
         ND4JClassLoading.setNd4jClassloader(this.getClassLoader());
 
-        getServer().getPluginManager().registerEvents(this, this);
+        AgentConfig agentConfig = AgentConfig.fromConfig(getConfig().getConfigurationSection("agent"));
+        String engine = getConfig().getString("inference.engine", "java");
+        SnakeGameDQNAgent agent = null;
+        // Gameplay-only servers skip the network and the replay memory and serve the exported policy
+        if (engine.equalsIgnoreCase("policy") && policyFile().exists()) {
+            try {
+                agent = SnakeGameDQNAgent.fromPolicy(agentConfig, metrics, policyFile());
+                System.out.println("Serving gameplay from policy " + policyFile());
+            } catch (IOException e) {
+                System.err.println("Error loading policy " + policyFile() + ", loading the full model instead");
+                e.printStackTrace();
+            }
+        }
+        if (agent == null) {
+            agent = loadNetworkAgent(agentConfig, engine);
+        }
 
+        checkpoints = new CheckpointManager(modelFile, getConfig().getInt("checkpoint.keep", 5),
+                getConfig().getLong("checkpoint.every-episodes", 100), getConfig().getLong("checkpoint.every-steps", 0));
+        agent.setCheckpointManager(checkpoints);
 
+        dqnAgent = agent; // Published last, so commands only ever see a fully set up agent
+        System.out.println("Snake AI model ready in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+    }
 
-        // Initialize your DQN agent
-        dqnAgent = new SnakeGameDQNAgent();
+    // The full agent: network, replay memory and model.zip
+    private SnakeGameDQNAgent loadNetworkAgent(AgentConfig agentConfig, String engine) {
+        SnakeGameDQNAgent agent = null;
+        if (getConfig().getString("replay.backend", "heap").equalsIgnoreCase("mapped")) {
+            File replayFile = new File(getDataFolder(), getConfig().getString("replay.file", "replay.bin"));
+            try {
+                MappedReplayBuffer store = new MappedReplayBuffer(replayFile, mappedReplayCapacity(agentConfig.getStateEncoding()),
+                        agentConfig.getStateEncoding().size());
+                agent = new SnakeGameDQNAgent(agentConfig, metrics, store);
+                System.out.println("Replay memory resumed from " + replayFile + " with " + store.size() + " experiences");
+            } catch (IOException e) {
+                System.err.println("Error opening replay file " + replayFile + ", keeping replay memory on the heap");
+                e.printStackTrace();
+            }
+        }
+        if (agent == null) {
+            agent = new SnakeGameDQNAgent(agentConfig, metrics);
+        }
+        if (getConfig().getBoolean("replay.prioritized", false)) {
+            agent.enablePrioritizedReplay(getConfig().getDouble("replay.alpha", 0.6),
+                    getConfig().getDouble("replay.beta-start", 0.4),
+                    getConfig().getLong("replay.beta-steps", 100000),
+                    getConfig().getInt("replay.prioritized-window", PrioritizedReplay.DEFAULT_WINDOW));
+            int window = agent.getPrioritizedReplay().getWindow();
+            if (window < agent.getReplayStore().capacity()) {
+                System.out.println("Prioritized replay samples the newest " + window + " of " + agent.getReplayStore().capacity()
+                        + " experiences (" + PrioritizedReplay.heapBytes(window) / (1024 * 1024) + " MB of priorities)");
+            }
+        }
 
         // Optionally load a previously saved model
-        dqnAgent.loadModel(modelFile.getAbsolutePath());
+        agent.loadModel(modelFile.getAbsolutePath());
+        if (!engine.equalsIgnoreCase("nd4j")) {
+            agent.enableJavaInference();
+        }
+        return agent;
     }
 
-    @Override
-    public void onDisable() {
-        // Example of saving the model
-        dqnAgent.saveModel(modelFile.getAbsolutePath());
+    // replay.mapped-capacity, capped so the file stays within replay.mapped-max-mb
+    private int mappedReplayCapacity(StateEncoding stateEncoding) {
+        int capacity = Math.max(1, getConfig().getInt("replay.mapped-capacity", 5000000));
+        long maxMb = Math.max(1, getConfig().getLong("replay.mapped-max-mb", 4096));
+        int recordBytes = MappedReplayBuffer.recordBytes(stateEncoding.size());
+        long maxCapacity = Math.max(1, maxMb * 1024 * 1024 / recordBytes);
+        if (capacity > maxCapacity) {
+            System.err.println("replay.mapped-capacity " + capacity + " needs a " + (long) capacity * recordBytes / (1024 * 1024)
+                    + " MB replay file with agent.state: " + stateEncoding.name().toLowerCase() + ", more than replay.mapped-max-mb ("
+                    + maxMb + "). Using " + maxCapacity + " experiences");
+            return (int) maxCapacity;
+        }
+        return capacity;
+    }
+
+    // Trains the sweep off the main thread, writes the winner to model.zip and its values to config.yml, then rebuilds
+    // the live agent from them
+    private void runSweep(HyperparameterSweep sweep, CommandSender sender) {
+        new BukkitRunnable() {
+            @Override
+            public void run() {
+                try {
+                    List<HyperparameterSweep.Result> results = sweep.run(Main.this::isEnabled,
+                            message -> Bukkit.getScheduler().runTask(Main.this, () -> Bukkit.broadcastMessage(message)));
+                    SnakeGameDQNAgent best = sweep.getBestAgent();
+                    if (best == null || !isEnabled()) {
+                        return;
+                    }
+                    checkpoints.save(best).get();
+                    Bukkit.getScheduler().runTask(Main.this, () -> {
+                        AgentConfig winner = best.getConfig();
+                        Bukkit.broadcastMessage(String.format("Sweep finished. Best rolling score %.3f with %s",
+                                results.get(0).getRollingScore(), winner));
+                        ConfigurationSection agentSection = getConfig().getConfigurationSection("agent");
+                        winner.writeTo(agentSection != null ? agentSection : getConfig().createSection("agent"));
+                        saveConfig();
+                        SnakeGameDQNAgent live = dqnAgent;
+                        String message;
+                        if (live == null || live.isTraining()) {
+                            message = "The best values are saved to config.yml and model.zip. Training is still running, so the "
+                                    + "agent switches to them after a restart.";
+                        } else {
+                            rebuildAgent();
+                            message = "The best values are saved to config.yml and model.zip, and the agent is being rebuilt with them.";
+                        }
+                        if (!(sender instanceof Player) || ((Player) sender).isOnline()) {
+                            sender.sendMessage(message);
+                        }
+                    });
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (ExecutionException e) {
+                    System.err.println("Error saving the best model of the sweep");
+                    e.printStackTrace();
+                } finally {
+                    sweepRunning.set(false);
+                }
+            }
+        }.runTaskAsynchronously(this);
+    }
+
+    // Replaces the agent with one built from the current config and model.zip. Called on the main thread while
+    // nothing trains; commands see the agent as loading until the new one is ready, so none can start training the
+    // old one. AI boards already playing keep the old agent.
+    private void rebuildAgent() {
+        SnakeGameDQNAgent old = dqnAgent;
+        CheckpointManager oldCheckpoints = checkpoints;
+        dqnAgent = null;
+        new BukkitRunnable() {
+            @Override
+            public void run() {
+                try {
+                    oldCheckpoints.close();
+                    if (old.getReplayStore() != null) {
+                        old.getReplayStore().close(); // The new agent reopens a mapped replay file
+                    }
+                    loadAgent();
+                } catch (Throwable t) {
+                    agentLoadFailure = t;
+                    System.err.println("Error rebuilding the Snake AI model");
+                    t.printStackTrace();
+                }
+            }
+        }.runTaskAsynchronously(this);
+    }
+
+    // Scans the episode log off the main thread for the requested game (last, best or a 1-based number), then plays
+    // it back on a fresh board next to the others
+    private void playRecordedEpisode(String which, Player player) {
+        new BukkitRunnable() {
+            @Override
+            public void run() {
+                EpisodePlayback playback = null;
+                int number = 0;
+                int bestScore = -1;
+                String description = null;
+                try (EpisodeReader reader = new EpisodeReader(episodeRecorder.getFile())) {
+                    while (reader.next()) {
+                        number++;
+                        boolean match = which.equalsIgnoreCase("last")
+                                || which.equalsIgnoreCase("best") && reader.getScore() > bestScore
+                                || which.equals(String.valueOf(number));
+                        if (match) {
+                            bestScore = Math.max(bestScore, reader.getScore());
+                            playback = new EpisodePlayback(reader);
+                            description = String.format("Replaying episode %d: %s game, score %d, %d steps",
+                                    number, reader.isAiControlled() ? "AI" : "player", reader.getScore(), reader.getSteps());
+                        }
+                    }
+                } catch (IOException e) {
+                    System.err.println("Error reading episode log " + episodeRecorder.getFile());
+                    e.printStackTrace();
+                    return;
+                }
+
+                EpisodePlayback found = playback;
+                String message = description != null ? description : "No recorded episode " + which + " yet.";
+                Bukkit.getScheduler().runTask(Main.this, () -> {
+                    if (found != null) {
+                        World world = player != null && player.isOnline() ? player.getWorld() : Bukkit.getWorlds().get(0);
+                        gameManager.startSession(world, null, TICK_INTERVAL, found.getInitialDirection(), found.getSeed(), found);
+                    }
+                    Bukkit.broadcastMessage(message);
+                });
+            }
+        }.runTaskAsynchronously(this);
+    }
+
+    private File policyFile() {
+        return new File(getDataFolder(), getConfig().getString("inference.policy-file", "policy.bin"));
+    }
+
+    // Runs a policy export or validation off the main thread and reports the result, or the error, to the sender
+    private void runPolicyTask(CommandSender sender, Callable<String> task) {
+        new BukkitRunnable() {
+            @Override
+            public void run() {
+                String message;
+                try {
+                    message = task.call();
+                } catch (Exception e) {
+                    System.err.println("Error exporting or validating policy " + policyFile());
+                    e.printStackTrace();
+                    message = "Policy error: " + e.getMessage();
+                }
+                String result = message;
+                Bukkit.getScheduler().runTask(Main.this, () -> sender.sendMessage(result));
+            }
+        }.runTaskAsynchronously(this);
+    }
+
+    // Null (with a message to the sender) until the agent has loaded; also kicks off loading if it was deferred
+    private SnakeGameDQNAgent requireAgent(CommandSender sender) {
+        SnakeGameDQNAgent agent = dqnAgent;
+        if (agent == null) {
+            if (agentLoadFailure != null) {
+                sender.sendMessage("The Snake AI model failed to load: " + agentLoadFailure + ". See the server log.");
+            } else {
+                startLoadingAgent();
+                sender.sendMessage("The Snake AI model is loading, try again in a moment.");
+            }
+        }
+        return agent;
+    }
+
+    // Like requireAgent, but also null for an agent that only serves a policy and so can't train or touch model.zip
+    private SnakeGameDQNAgent requireNetwork(CommandSender sender) {
+        SnakeGameDQNAgent agent = requireAgent(sender);
+        if (agent != null && !agent.hasNetwork()) {
+            sender.sendMessage("This server only serves the exported policy. Set inference.engine to java or nd4j to train or use the full model.");
+            return null;
+        }
+        return agent;
     }
 
     @Override
     public boolean onCommand(CommandSender sender, Command command, String label, String[] args) {
         if (command.getName().equalsIgnoreCase("snakegame")) {
-            Player player = Bukkit.getOnlinePlayers().isEmpty() ? null : Bukkit.getOnlinePlayers().iterator().next();
+            if (args.length > 0 && args[0].equalsIgnoreCase("ai")) {
+                if (!sender.hasPermission("mcsnakegame.ai")) {
+                    sender.sendMessage("You don't have permission to start AI games.");
+                    return true;
+                }
+                SnakeGameDQNAgent dqnAgent = requireAgent(sender);
+                if (dqnAgent == null) {
+                    return true;
+                }
+                int boards = 1;
+                if (args.length > 1) {
+                    try {
+                        boards = Integer.parseInt(args[1]);
+                    } catch (NumberFormatException e) {
+                        sender.sendMessage("Invalid number of boards: " + args[1]);
+                        return true;
+                    }
+                    if (boards < 1) {
+                        sender.sendMessage("Number of boards must be at least 1.");
+                        return true;
+                    }
+                }
+                int maxBoards = Math.max(1, getConfig().getInt("boards.max-ai", 64));
+                int available = maxBoards - gameManager.getSessionCount(AiController.class);
+                if (available <= 0) {
+                    sender.sendMessage("Already running " + maxBoards + " AI boards, the most boards.max-ai allows.");
+                    return true;
+                }
+                if (boards > available) {
+                    sender.sendMessage("Only starting " + available + " of " + boards + " AI boards, boards.max-ai allows "
+                            + maxBoards + " at once.");
+                    boards = available;
+                }
+                World world = sender instanceof Player ? ((Player) sender).getWorld() : Bukkit.getWorlds().get(0);
+                for (int i = 0; i < boards; i++) {
+                    startAiGame(world, dqnAgent);
+                }
+                sender.sendMessage("Started " + boards + " AI Snake game" + (boards == 1 ? "." : "s."));
+                return true;
+            }
+            Player player = sender instanceof Player ? (Player) sender
+                    : Bukkit.getOnlinePlayers().isEmpty() ? null : Bukkit.getOnlinePlayers().iterator().next();
             if (player != null) {
                 startSnakeGame(player);
                 sender.sendMessage("Started Snake game for player: " + player.getName());
@@ -73,6 +418,10 @@ public class Main extends JavaPlugin implements Listener {
             }
             return true;
         } else if (command.getName().equalsIgnoreCase("trainsnake")) {
+            SnakeGameDQNAgent dqnAgent = requireNetwork(sender);
+            if (dqnAgent == null) {
+                return true;
+            }
             int episodes = 100; // Default number of episodes
             if (args.length > 0) {
                 try {
@@ -81,22 +430,161 @@ public class Main extends JavaPlugin implements Listener {
                     sender.sendMessage("Invalid number of episodes. Using default: 100");
                 }
             }
+            if (dqnAgent.isTraining()) {
+                sender.sendMessage("Training is already running.");
+                return true;
+            }
+            if (args.length > 1 && args[1].equalsIgnoreCase("headless")) {
+                int boards = Runtime.getRuntime().availableProcessors(); // Default: one board per core
+                if (args.length > 2) {
+                    try {
+                        boards = Math.max(1, Integer.parseInt(args[2]));
+                    } catch (NumberFormatException e) {
+                        sender.sendMessage("Invalid number of boards. Using default: " + boards);
+                    }
+                }
+                if (dqnAgent.runHeadlessTraining(this, episodes, boards)) {
+                    sender.sendMessage("Starting " + episodes + " headless training episodes on " + boards + " boards.");
+                } else {
+                    sender.sendMessage("Training is already running.");
+                }
+                return true;
+            }
             dqnAgent.runTraining(this, episodes);
             sender.sendMessage("Starting " + episodes + " training episodes.");
             return true;
+        } else if (command.getName().equalsIgnoreCase("snakesweep")) {
+            SnakeGameDQNAgent dqnAgent = requireNetwork(sender);
+            if (dqnAgent == null) {
+                return true;
+            }
+            int episodes = getConfig().getInt("sweep.episodes", 500);
+            if (args.length > 0) {
+                try {
+                    episodes = Math.max(1, Integer.parseInt(args[0]));
+                } catch (NumberFormatException e) {
+                    sender.sendMessage("Invalid number of episodes. Using default: " + episodes);
+                }
+            }
+            if (!sweepRunning.compareAndSet(false, true)) {
+                sender.sendMessage("A hyperparameter sweep is already running.");
+                return true;
+            }
+            HyperparameterSweep sweep = new HyperparameterSweep(
+                    HyperparameterSweep.grid(getConfig().getConfigurationSection("sweep"), dqnAgent.getConfig()),
+                    episodes, getConfig().getInt("sweep.parallelism", 0));
+            runSweep(sweep, sender);
+            sender.sendMessage("Starting a hyperparameter sweep of " + sweep.getCandidateCount() + " configurations, "
+                    + episodes + " episodes each.");
+            return true;
+        } else if (command.getName().equalsIgnoreCase("snakereplay")) {
+            if (episodeRecorder == null) {
+                sender.sendMessage("Episode recording is off. Set recording.enabled in config.yml.");
+                return true;
+            }
+            String which = args.length > 0 ? args[0] : "last";
+            if (which.equalsIgnoreCase("learn")) {
+                SnakeGameDQNAgent dqnAgent = requireNetwork(sender);
+                if (dqnAgent == null) {
+                    return true;
+                }
+                if (dqnAgent.isTraining() || !dqnAgent.runEpisodeImport(this, episodeRecorder.getFile())) {
+                    sender.sendMessage("Training is running, try again when it has finished.");
+                } else {
+                    sender.sendMessage("Importing recorded episodes into the replay memory.");
+                }
+                return true;
+            }
+            if (!which.equalsIgnoreCase("last") && !which.equalsIgnoreCase("best")) {
+                try {
+                    if (Integer.parseInt(which) < 1) {
+                        throw new NumberFormatException();
+                    }
+                } catch (NumberFormatException e) {
+                    sender.sendMessage("Usage: /snakereplay [last|best|<episode number>|learn]");
+                    return true;
+                }
+            }
+            Player player = sender instanceof Player ? (Player) sender : null;
+            playRecordedEpisode(which, player);
+            sender.sendMessage("Looking up recorded episode " + which + ".");
+            return true;
+        } else if (command.getName().equalsIgnoreCase("snakestats")) {
+            if (args.length > 0 && args[0].equalsIgnoreCase("reset")) {
+                metrics.reset();
+                sender.sendMessage("Snake stats reset.");
+                return true;
+            }
+            sender.sendMessage("Snake stats (latencies in microseconds):");
+            for (Map.Entry<String, Number> entry : metrics.snapshot().entrySet()) {
+                sender.sendMessage("  " + entry.getKey() + ": " + entry.getValue());
+            }
+            SnakeGameDQNAgent agent = dqnAgent;
+            if (agent != null) {
+                sender.sendMessage("  learner_queue: " + agent.getLearnerQueueDepth() + ", weight_staleness: " + agent.getWeightStaleness());
+            } else {
+                sender.sendMessage("  model: " + (agentLoadFailure != null ? "failed to load" : "loading"));
+            }
+            sender.sendMessage("  tick_budget_ms: " + gameManager.getTickBudget().getBudgetNanos() / 1_000_000.0);
+            return true;
+        } else if (command.getName().equalsIgnoreCase("snakepolicy")) {
+            SnakeGameDQNAgent dqnAgent = requireNetwork(sender);
+            if (dqnAgent == null) {
+                return true;
+            }
+            if (args.length > 0 && args[0].equalsIgnoreCase("export")) {
+                boolean int8 = args.length > 1 && args[1].equalsIgnoreCase("int8");
+                runPolicyTask(sender, () -> String.format("Exported %s policy to %s (%d bytes), max Q deviation %.6f",
+                        int8 ? "int8" : "float32", policyFile().getName(), dqnAgent.exportPolicy(policyFile(), int8),
+                        dqnAgent.validatePolicy(policyFile())));
+            } else if (args.length > 0 && args[0].equalsIgnoreCase("validate")) {
+                runPolicyTask(sender, () -> {
+                    long start = System.nanoTime();
+                    PolicyFile.read(policyFile(), dqnAgent.getConfig().getStateEncoding());
+                    long loadMicros = (System.nanoTime() - start) / 1000;
+                    return String.format("Policy %s loads in %d us, max Q deviation from the full model %.6f",
+                            policyFile().getName(), loadMicros, dqnAgent.validatePolicy(policyFile()));
+                });
+            } else {
+                sender.sendMessage("Usage: /snakepolicy <export [int8]|validate>");
+            }
+            return true;
         } else if (command.getName().equalsIgnoreCase("savemodel")) {
-            dqnAgent.saveModel(modelFile.getPath());
-            sender.sendMessage("Model saved successfully.");
+            SnakeGameDQNAgent dqnAgent = requireNetwork(sender);
+            if (dqnAgent == null) {
+                return true;
+            }
+            checkpoints.save(dqnAgent);
+            sender.sendMessage("Saving model in the background.");
             return true;
         } else if (command.getName().equalsIgnoreCase("loadmodel")) {
-            dqnAgent.loadModel(modelFile.getPath());
-            sender.sendMessage("Model loaded successfully.");
+            SnakeGameDQNAgent dqnAgent = requireNetwork(sender);
+            if (dqnAgent == null) {
+                return true;
+            }
+            if (dqnAgent.isTraining()) {
+                sender.sendMessage("Training is running, load the model when it has finished.");
+                return true;
+            }
+            if (dqnAgent.loadModel(modelFile.getPath())) {
+                sender.sendMessage("Model loaded successfully.");
+            } else {
+                sender.sendMessage("The model could not be loaded, see the server log.");
+            }
             return true;
         } else if (command.getName().equalsIgnoreCase("getepsilon")) {
+            SnakeGameDQNAgent dqnAgent = requireAgent(sender);
+            if (dqnAgent == null) {
+                return true;
+            }
             double epsilon = dqnAgent.getEpsilon();
             sender.sendMessage("Current epsilon value: " + epsilon);
             return true;
         } else if (command.getName().equalsIgnoreCase("setepsilon")) {
+            SnakeGameDQNAgent dqnAgent = requireAgent(sender);
+            if (dqnAgent == null) {
+                return true;
+            }
             if (args.length > 0) {
                 try {
                     double epsilon = Double.parseDouble(args[0]);
@@ -114,86 +602,43 @@ public class Main extends JavaPlugin implements Listener {
     }
 
 
-    public void startSnakeGame(Player player) {
-        world = player != null ? player.getWorld() : Bukkit.getWorlds().get(0);
-        aiControlled = (player == null);
-
-        clearEntities(world);
-
-        snakeBody = new ArrayList<>();
-        snakePositions = new ArrayList<>();
-
-        setupGameBoard();
-
-        Location spawnLocation = new Location(world, BOARD_WIDTH / 2, 72, BOARD_HEIGHT / 2);
-        snakeBody.add(spawnLocation.clone());
-        snakePositions.add(spawnLocation.clone());
-        spawnLocation.getBlock().setType(Material.GREEN_CONCRETE);
-
-        random = new Random();
-        generateFood();
-
-        currentDirection = aiControlled ? Direction.UP : getDirectionFromPlayer(player);
-        isGameOver = false;
-        score = 0;
-
-        new BukkitRunnable() {
-            @Override
-            public void run() {
-                if (!isGameOver) {
-                    if (aiControlled) {
-                        // Ensure dqnAgent is not null
-                        if (dqnAgent == null) {
-                            Bukkit.getLogger().severe("DQN Agent is not initialized!");
-                            cancel();
-                        }
-                    } else if (player != null) {
-                        currentDirection = getDirectionFromPlayer(player);
-                        moveSnake(currentDirection);
-                        tick();
-                    }
-
-                } else {
-                    cancel();
-                }
+    /**
+     * Starts a game on a fresh board for the player, steered by where they look.
+     */
+    public GameSession startSnakeGame(Player player) {
+        return gameManager.startSession(player.getWorld(), player, TICK_INTERVAL, getDirectionFromPlayer(player), session -> {
+            if (session.isGameOver() || !player.isOnline()) {
+                session.close();
+                return;
             }
-        }.runTaskTimer(this, 0, TICK_INTERVAL);
+            session.moveSnake(getDirectionFromPlayer(player));
+            session.tick();
+        });
     }
 
-    private void setupGameBoard() {
-        for (int x = -1; x <= BOARD_WIDTH; x++) {
-            for (int z = -1; z <= BOARD_HEIGHT; z++) {
-                Location location = new Location(world, x, 72, z);
-                if (x == -1 || x == BOARD_WIDTH || z == -1 || z == BOARD_HEIGHT) {
-                    location.getBlock().setType(Material.AIR);
-                } else {
-                    location.getBlock().setType(Material.BLACK_CONCRETE);
-                }
-            }
+    /**
+     * Starts a game on a fresh board played greedily by the agent. All AI boards share one batched forward pass per tick.
+     */
+    public GameSession startAiGame(World world, SnakeGameDQNAgent agent) {
+        if (aiInference == null || aiInference.getAgent() != agent) {
+            aiInference = new BatchedInference(agent);
         }
+        return gameManager.startSession(world, null, TICK_INTERVAL, Direction.UP, new AiController(aiInference));
     }
 
-    public void moveSnake(Direction direction) {
-        setupGameBoard();
-
-        snakePositions.get(0).getBlock().setType(Material.BLACK_CONCRETE);
-
-        if (!direction.isOpposite(currentDirection)) {
-            currentDirection = direction;
-        }
+    public GameManager getGameManager() {
+        return gameManager;
+    }
 
-        for (int i = snakeBody.size() - 1; i > 0; i--) {
-            Location currentPos = snakeBody.get(i);
-            Location nextPos = snakeBody.get(i - 1).clone();
-            currentPos.getBlock().setType(Material.BLACK_CONCRETE);
-            snakeBody.set(i, nextPos);
-            snakePositions.set(i, nextPos.clone());
-        }
+    public SnakeMetrics getMetrics() {
+        return metrics;
+    }
 
-        Location currentLocation = snakeBody.get(0);
-        Location newLocation = currentLocation.clone().add(currentDirection.toVector());
-        snakeBody.set(0, newLocation);
-        snakePositions.set(0, newLocation.clone());
+    /**
+     * The agent, or null while it is still loading (or failed to load).
+     */
+    public SnakeGameDQNAgent getAgent() {
+        return dqnAgent;
     }
 
     private Direction getDirectionFromPlayer(Player player) {
@@ -208,169 +653,61 @@ public class Main extends JavaPlugin implements Listener {
         }
     }
 
-    private boolean checkCollisions() {
-        Location headLocation = snakePositions.get(0);
-        if (headLocation.getX() < 0 || headLocation.getX() >= BOARD_WIDTH ||
-                headLocation.getZ() < 0 || headLocation.getZ() >= BOARD_HEIGHT) {
-            return true;
-        }
-
-        for (Location pos : snakePositions.subList(1, snakePositions.size())) {
-            if (pos.getBlock().equals(headLocation.getBlock())) {
-                return true;
-            }
-        }
-
-        return false;
-    }
-
-    private void generateFood() {
-        Location newFoodLocation;
-        do {
-            int x = random.nextInt(BOARD_WIDTH - 2) + 1;
-            int z = random.nextInt(BOARD_HEIGHT - 2) + 1;
-            newFoodLocation = new Location(world, x, 72, z);
-        } while (snakePositions.contains(newFoodLocation));
-
-        foodLocation = newFoodLocation;
-        foodLocation.getBlock().setType(Material.RED_CONCRETE);
-    }
-
-    private void eatFood() {
-        Location tail = snakeBody.get(snakeBody.size() - 1);
-        Location newTail = tail.clone().subtract(currentDirection.toVector());
-
-        snakeBody.add(newTail);
-        snakePositions.add(newTail.clone());
-        score++;
-    }
-
-    private void clearEntities(World world) {
-        if (snakeBody != null) {
-            for (Location loc : snakeBody) {
-                loc.getBlock().setType(Material.AIR);
-            }
-        }
-        if (foodLocation != null) {
-            foodLocation.getBlock().setType(Material.AIR);
-        }
-    }
+}
 
-    private void endGame() {
-        isGameOver = true;
-    }
+enum Direction {
+    UP(0, -1),
+    DOWN(0, 1),
+    LEFT(-1, 0),
+    RIGHT(1, 0);
 
-    private void updateDisplay() {
-        for (int i = 0; i < snakePositions.size(); i++) {
-            Location loc = snakePositions.get(i);
-            if (i == 0) {
-                loc.getBlock().setType(Material.GREEN_CONCRETE);
-            } else {
-                loc.getBlock().setType(Material.LIME_CONCRETE);
-            }
-        }
+    private final int x;
+    private final int z;
 
-        foodLocation.getBlock().setType(Material.RED_CONCRETE);
+    Direction(int x, int z) {
+        this.x = x;
+        this.z = z;
     }
 
-
-    boolean eaten_food;
-    public void tick() {
-        if (checkCollisions()) {
-            endGame();
-            return;
-        }
-
-        if (snakePositions.get(0).getBlock().equals(foodLocation.getBlock())) {
-            eatFood();
-            generateFood();
-            eaten_food = true;
-        }
-
-        updateDisplay();
+    public Vector toVector() {
+        return new Vector(x, 0, z);
     }
 
-    public Material getBlockTypeAt(int x, int z) {
-        return world.getBlockAt(x, 72, z).getType();
+    public int getX() {
+        return x;
     }
 
-    public boolean isGameOver() {
-        return this.isGameOver;
+    public int getZ() {
+        return z;
     }
 
-    public INDArray getStateInfo() {
-        Location headLocation = snakePositions.get(0);
-        Location appleLocation = foodLocation;
-
-        // Head and apple coordinates
-        int headX = headLocation.getBlockX();
-        int headZ = headLocation.getBlockZ();
-        int appleX = appleLocation.getBlockX();
-        int appleZ = appleLocation.getBlockZ();
-
-        // Determine direction of snake's head
-        int headDirection;
-        if (currentDirection == Direction.UP) {
-            headDirection = 0;
-        } else if (currentDirection == Direction.DOWN) {
-            headDirection = 1;
-        } else if (currentDirection == Direction.LEFT) {
-            headDirection = 2;
-        } else if (currentDirection == Direction.RIGHT) {
-            headDirection = 3;
-        } else {
-            headDirection = -1; // Default or error case
+    // Turning relative to the current heading, with UP as north (-z) and RIGHT as east (+x)
+    public Direction turnLeft() {
+        switch (this) {
+            case UP:
+                return LEFT;
+            case LEFT:
+                return DOWN;
+            case DOWN:
+                return RIGHT;
+            default:
+                return UP;
         }
-
-        // Check if directions are blocked
-        int leftBlockedType = DirectionBlock(headLocation, Direction.LEFT);
-        int rightBlockedType = DirectionBlock(headLocation, Direction.RIGHT);
-        int forwardBlockedType = DirectionBlock(headLocation, currentDirection);
-
-        // Create INDArray with shape [1, 8] (1 row, 8 columns)
-        INDArray stateArray = Nd4j.create(new double[]{headX, headZ, appleX, appleZ, leftBlockedType, rightBlockedType, forwardBlockedType, headDirection}, new int[]{1, 8});
-
-        return stateArray;
     }
 
-
-
-    private int DirectionBlock(Location headLocation, Direction direction) {
-        Location nextLocation = headLocation.clone().add(direction.toVector());
-        Material blockType = nextLocation.getBlock().getType();
-
-        if (blockType.equals(Material.AIR)) {
-            return 0; // Represents AIR
-        } else if (blockType.equals(Material.LIME_CONCRETE)) {
-            return 1; // Represents LIME_CONCRETE
-        } else if (blockType.equals(Material.BLACK_CONCRETE)) {
-            return 2; // Represents BLACK_CONCRETE
-        } else if (blockType.equals(Material.RED_CONCRETE)) {
-            return 3; // Represents RED_CONCRETE
-        } else {
-            // Handle other block types if necessary
-            return -1; // Or another default value indicating unknown block type
+    public Direction turnRight() {
+        switch (this) {
+            case UP:
+                return RIGHT;
+            case RIGHT:
+                return DOWN;
+            case DOWN:
+                return LEFT;
+            default:
+                return UP;
         }
     }
 
-}
-
-enum Direction {
-    UP(new Vector(0, 0, -1)),
-    DOWN(new Vector(0, 0, 1)),
-    LEFT(new Vector(-1, 0, 0)),
-    RIGHT(new Vector(1, 0, 0));
-
-    private final Vector vector;
-
-    Direction(Vector vector) {
-        this.vector = vector;
-    }
-
-    public Vector toVector() {
-        return vector.clone();
-    }
-
     public boolean isOpposite(Direction other) {
         return this == UP && other == DOWN ||
                 this == DOWN && other == UP ||
@@ -0,0 +1,207 @@
+package org.frozenpeng.mcdqnsnakegame;
+
+import org.nd4j.linalg.api.ndarray.INDArray;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Replay memory in a memory-mapped file, so collected experience survives restarts and capacities in the
+ * millions don't live on the heap. The file is a 64-byte header (magic, version, state size, capacity, cursor,
+ * size) followed by fixed-width little-endian records:
+ * <pre>
+ *   float[stateSize] state | float[stateSize] nextState | float reward | byte action | byte done | 2 bytes padding
+ * </pre>
+ * That is 72 bytes per experience for the 8-feature state. Records are read straight from the mapping into
+ * the minibatch arrays. The file is mapped in segments because a single mapping can't exceed 2 GB.
+ */
+public class MappedReplayBuffer implements ReplayStore {
+
+    private static final int MAGIC = 0x534E5250; // "SNRP"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+    private static final int CURSOR_OFFSET = 16;
+    private static final int SIZE_OFFSET = 20;
+
+    private final File file;
+    private final int capacity;
+    private final int stateSize;
+    private final int recordFloats;  // Whole record in 4-byte units, so every record stays float-aligned
+    private final int segmentShift;  // Records per segment is a power of two: slot >>> shift picks the segment
+    private final int segmentMask;
+
+    private final RandomAccessFile raf;
+    private final MappedByteBuffer header;
+    private final MappedByteBuffer[] segments;
+    private final FloatBuffer[] segmentFloats;
+
+    private int cursor;
+    private int size;
+
+    /**
+     * File space taken by one experience, e.g. 72 bytes for the 8-feature state and 4064 for the grid.
+     */
+    public static int recordBytes(int stateSize) {
+        return (2 * stateSize + 2) * 4;
+    }
+
+    /**
+     * Opens or creates the store. An existing file with the same state size and capacity is resumed from its
+     * cursor; anything else is started over.
+     */
+    public MappedReplayBuffer(File file, int capacity, int stateSize) throws IOException {
+        this.file = file;
+        this.capacity = capacity;
+        this.stateSize = stateSize;
+        this.recordFloats = 2 * stateSize + 2;
+        int recordBytes = recordBytes(stateSize);
+        this.segmentShift = 31 - Integer.numberOfLeadingZeros(Integer.MAX_VALUE / recordBytes);
+        this.segmentMask = (1 << segmentShift) - 1;
+
+        file.getParentFile().mkdirs();
+        boolean existed = file.exists() && file.length() >= HEADER_SIZE;
+        raf = new RandomAccessFile(file, "rw");
+        raf.setLength(HEADER_SIZE + (long) capacity * recordBytes);
+        FileChannel channel = raf.getChannel();
+
+        header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+        header.order(ByteOrder.LITTLE_ENDIAN);
+
+        int segmentCount = (int) (((long) capacity + segmentMask) >>> segmentShift);
+        segments = new MappedByteBuffer[segmentCount];
+        segmentFloats = new FloatBuffer[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            long firstSlot = (long) i << segmentShift;
+            long records = Math.min(1L << segmentShift, capacity - firstSlot);
+            segments[i] = channel.map(FileChannel.MapMode.READ_WRITE, HEADER_SIZE + firstSlot * recordBytes, records * recordBytes);
+            segments[i].order(ByteOrder.LITTLE_ENDIAN);
+            segmentFloats[i] = segments[i].asFloatBuffer();
+        }
+
+        if (existed && header.getInt(0) == MAGIC && header.getInt(4) == VERSION && header.getInt(8) == stateSize
+                && header.getInt(12) == capacity) {
+            cursor = header.getInt(CURSOR_OFFSET);
+            size = header.getInt(SIZE_OFFSET);
+            if (cursor < 0 || cursor >= capacity || size < 0 || size > capacity) {
+                System.err.println("Replay file " + file + " has a corrupt header, starting over");
+                cursor = 0;
+                size = 0;
+            }
+        } else if (existed) {
+            System.err.println("Replay file " + file + " was written with a different layout or capacity, starting over");
+        }
+        header.putInt(0, MAGIC);
+        header.putInt(4, VERSION);
+        header.putInt(8, stateSize);
+        header.putInt(12, capacity);
+        writeCursor();
+    }
+
+    @Override
+    public int add(INDArray state, Direction action, double reward, INDArray nextState, boolean done) {
+        int slot = cursor;
+        FloatBuffer floats = segmentFloats[slot >>> segmentShift];
+        int base = (slot & segmentMask) * recordFloats;
+        for (int i = 0; i < stateSize; i++) {
+            floats.put(base + i, state.getFloat(i));
+            floats.put(base + stateSize + i, nextState.getFloat(i));
+        }
+        writeTail(slot, base, action, reward, done);
+        return advance(slot);
+    }
+
+    @Override
+    public int add(float[] state, int stateOffset, Direction action, double reward, float[] nextState, int nextStateOffset, boolean done) {
+        int slot = cursor;
+        FloatBuffer floats = segmentFloats[slot >>> segmentShift];
+        int base = (slot & segmentMask) * recordFloats;
+        floats.position(base);
+        floats.put(state, stateOffset, stateSize);
+        floats.put(nextState, nextStateOffset, stateSize);
+        writeTail(slot, base, action, reward, done);
+        return advance(slot);
+    }
+
+    private void writeTail(int slot, int base, Direction action, double reward, boolean done) {
+        segmentFloats[slot >>> segmentShift].put(base + 2 * stateSize, (float) reward);
+        ByteBuffer bytes = segments[slot >>> segmentShift];
+        int flags = (base + 2 * stateSize + 1) * 4;
+        bytes.put(flags, (byte) action.ordinal());
+        bytes.put(flags + 1, (byte) (done ? 1 : 0));
+    }
+
+    private int advance(int slot) {
+        cursor = (cursor + 1) % capacity;
+        if (size < capacity) {
+            size++;
+        }
+        writeCursor();
+        return slot;
+    }
+
+    private void writeCursor() {
+        header.putInt(CURSOR_OFFSET, cursor);
+        header.putInt(SIZE_OFFSET, size);
+    }
+
+    @Override
+    public void gather(ReplayBuffer.Batch batch) {
+        for (int i = 0; i < batch.size; i++) {
+            int slot = batch.indices[i];
+            FloatBuffer floats = segmentFloats[slot >>> segmentShift];
+            int base = (slot & segmentMask) * recordFloats;
+            floats.position(base);
+            floats.get(batch.states, i * stateSize, stateSize);
+            floats.get(batch.nextStates, i * stateSize, stateSize);
+            batch.rewards[i] = floats.get();
+            int flags = (base + 2 * stateSize + 1) * 4;
+            ByteBuffer bytes = segments[slot >>> segmentShift];
+            batch.actions[i] = bytes.get(flags);
+            batch.notDone[i] = bytes.get(flags + 1) != 0 ? 0 : 1;
+        }
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public int capacity() {
+        return capacity;
+    }
+
+    @Override
+    public int cursor() {
+        return cursor;
+    }
+
+    @Override
+    public int stateSize() {
+        return stateSize;
+    }
+
+    /**
+     * Forces the mapping to disk and closes the file. The OS writes dirty pages back on its own too, so
+     * a crashed server only loses what the kernel hadn't flushed yet.
+     */
+    @Override
+    public void close() {
+        try {
+            for (MappedByteBuffer segment : segments) {
+                segment.force();
+            }
+            header.force();
+            raf.close();
+        } catch (IOException e) {
+            System.err.println("Error closing replay file " + file);
+            e.printStackTrace();
+        }
+    }
+}
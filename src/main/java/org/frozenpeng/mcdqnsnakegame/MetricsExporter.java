@@ -0,0 +1,85 @@
+package org.frozenpeng.mcdqnsnakegame;
+
+import org.bukkit.scheduler.BukkitRunnable;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Appends a {@link SnakeMetrics} snapshot to {@code metrics.jsonl} or {@code metrics.csv} in the plugin's data folder
+ * on every run. Meant to be scheduled as an async timer, so file I/O never lands on the main thread.
+ */
+public class MetricsExporter extends BukkitRunnable {
+
+    public enum Format {
+        JSONL, CSV
+    }
+
+    private final SnakeMetrics metrics;
+    private final Format format;
+    private final File file;
+    private BufferedWriter writer;
+
+    public MetricsExporter(SnakeMetrics metrics, Format format, File dataFolder) {
+        this.metrics = metrics;
+        this.format = format;
+        this.file = new File(dataFolder, format == Format.CSV ? "metrics.csv" : "metrics.jsonl");
+    }
+
+    @Override
+    public synchronized void run() {
+        Map<String, Number> values = metrics.snapshot();
+        try {
+            if (writer == null) {
+                boolean newFile = !file.exists() || file.length() == 0;
+                file.getParentFile().mkdirs();
+                writer = new BufferedWriter(new FileWriter(file, true));
+                if (newFile && format == Format.CSV) {
+                    writer.write("timestamp," + String.join(",", values.keySet()));
+                    writer.newLine();
+                }
+            }
+            writer.write(format == Format.CSV ? toCsv(values) : toJson(values));
+            writer.newLine();
+            writer.flush();
+        } catch (IOException e) {
+            System.err.println("Error writing metrics to file " + file);
+            e.printStackTrace();
+            cancel();
+            close();
+        }
+    }
+
+    public synchronized void close() {
+        if (writer != null) {
+            try {
+                writer.close();
+            } catch (IOException ignored) {
+            }
+            writer = null;
+        }
+    }
+
+    private static String toJson(Map<String, Number> values) {
+        StringBuilder line = new StringBuilder("{\"timestamp\":").append(System.currentTimeMillis());
+        for (Map.Entry<String, Number> entry : values.entrySet()) {
+            line.append(",\"").append(entry.getKey()).append("\":").append(format(entry.getValue(), "null"));
+        }
+        return line.append('}').toString();
+    }
+
+    private static String toCsv(Map<String, Number> values) {
+        StringBuilder line = new StringBuilder().append(System.currentTimeMillis());
+        for (Number value : values.values()) {
+            line.append(',').append(format(value, ""));
+        }
+        return line.toString();
+    }
+
+    private static String format(Number value, String missing) {
+        return value instanceof Double && ((Double) value).isNaN() ? missing : value.toString();
+    }
+}
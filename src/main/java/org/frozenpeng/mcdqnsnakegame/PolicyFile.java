@@ -0,0 +1,199 @@
+package org.frozenpeng.mcdqnsnakegame;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Inference-only policy file: just the layer shapes and weights of a {@link FastQNetwork}, no configuration JSON,
+ * no updater state, no zip. Reading it maps the file and copies the weights straight into float arrays, without
+ * touching ND4J. Little-endian:
+ * <pre>
+ *   int magic "SNPL", int version, int state encoding ordinal, int weight format (0 float32, 1 int8), int layers,
+ *   int sizes[layers + 1], int relu[layers] (1 ReLU, 0 identity), then per layer:
+ *     float32: float weights[nOut * nIn], float biases[nOut]
+ *     int8:    float scales[nOut], byte weights[nOut * nIn], float biases[nOut]
+ * </pre>
+ * Weights are stored per output unit, as {@link FastQNetwork} lays them out. The int8 format quantizes each output
+ * unit's weights symmetrically with its own scale (largest |w| maps to 127), so a file is about a quarter the size.
+ */
+public final class PolicyFile {
+
+    private static final int MAGIC = 0x534E504C; // "SNPL"
+    private static final int VERSION = 1;
+    private static final int FLOAT32 = 0;
+    private static final int INT8 = 1;
+    private static final int MAX_LAYERS = 64;
+    private static final int MAX_LAYER_SIZE = 1 << 20;
+
+    private PolicyFile() {
+    }
+
+    /**
+     * Writes network to file, atomically replacing any previous policy. Returns the file size in bytes.
+     */
+    public static long write(FastQNetwork network, StateEncoding encoding, boolean int8, File file) throws IOException {
+        int layers = network.layerCount();
+        int size = 4 * (5 + layers + 1 + layers);
+        for (int i = 0; i < layers; i++) {
+            int nIn = network.size(i);
+            int nOut = network.size(i + 1);
+            size += int8 ? 4 * nOut + nIn * nOut + 4 * nOut : 4 * nIn * nOut + 4 * nOut;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC).putInt(VERSION).putInt(encoding.ordinal()).putInt(int8 ? INT8 : FLOAT32).putInt(layers);
+        for (int i = 0; i <= layers; i++) {
+            buffer.putInt(network.size(i));
+        }
+        for (int i = 0; i < layers; i++) {
+            buffer.putInt(network.isRelu(i) ? 1 : 0);
+        }
+        for (int i = 0; i < layers; i++) {
+            float[] weights = network.weights(i);
+            if (int8) {
+                putQuantized(buffer, weights, network.size(i), network.size(i + 1));
+            } else {
+                buffer.asFloatBuffer().put(weights);
+                buffer.position(buffer.position() + 4 * weights.length);
+            }
+            buffer.asFloatBuffer().put(network.biases(i));
+            buffer.position(buffer.position() + 4 * network.biases(i).length);
+        }
+        buffer.flip();
+
+        File directory = file.getAbsoluteFile().getParentFile();
+        directory.mkdirs();
+        Path temp = new File(directory, file.getName() + ".tmp").toPath();
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+        try {
+            Files.move(temp, file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        return size;
+    }
+
+    // One scale per output unit, then that unit's weights as round(w / scale) in [-127, 127]
+    private static void putQuantized(ByteBuffer buffer, float[] weights, int nIn, int nOut) {
+        float[] scales = new float[nOut];
+        for (int out = 0; out < nOut; out++) {
+            float max = 0;
+            for (int in = 0; in < nIn; in++) {
+                max = Math.max(max, Math.abs(weights[out * nIn + in]));
+            }
+            scales[out] = max / 127f;
+            buffer.putFloat(scales[out]);
+        }
+        for (int out = 0; out < nOut; out++) {
+            for (int in = 0; in < nIn; in++) {
+                float scaled = scales[out] == 0 ? 0 : weights[out * nIn + in] / scales[out];
+                buffer.put((byte) Math.max(-127, Math.min(127, Math.round(scaled))));
+            }
+        }
+    }
+
+    /**
+     * Maps file and builds the network it holds. Throws if it isn't a policy file or was exported for a different
+     * state encoding than expected.
+     */
+    public static FastQNetwork read(File file, StateEncoding expected) throws IOException {
+        MappedByteBuffer mapped;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        ByteBuffer buffer = mapped.order(ByteOrder.LITTLE_ENDIAN);
+        try {
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                throw new IOException("Not a policy file: " + file);
+            }
+            int encoding = buffer.getInt();
+            if (encoding != expected.ordinal()) {
+                throw new IOException("Policy " + file + " was exported for " + describe(encoding) + " states, the agent uses "
+                        + expected.name().toLowerCase());
+            }
+            int format = buffer.getInt();
+            int layers = buffer.getInt();
+            if ((format != FLOAT32 && format != INT8) || layers < 1 || layers > MAX_LAYERS) {
+                throw new IOException("Corrupt policy file: " + file);
+            }
+
+            int[] sizes = new int[layers + 1];
+            for (int i = 0; i <= layers; i++) {
+                sizes[i] = buffer.getInt();
+                if (sizes[i] < 1 || sizes[i] > MAX_LAYER_SIZE) {
+                    throw new IOException("Corrupt policy file: " + file);
+                }
+            }
+            if (sizes[0] != expected.size()) {
+                throw new IOException("Policy " + file + " takes " + sizes[0] + " inputs, expected " + expected.size());
+            }
+            boolean[] relu = new boolean[layers];
+            for (int i = 0; i < layers; i++) {
+                relu[i] = buffer.getInt() == 1;
+            }
+
+            float[][] weights = new float[layers][];
+            float[][] biases = new float[layers][];
+            for (int i = 0; i < layers; i++) {
+                int nIn = sizes[i];
+                int nOut = sizes[i + 1];
+                if ((long) nIn * nOut > buffer.remaining()) {
+                    throw new BufferUnderflowException();
+                }
+                weights[i] = new float[nIn * nOut];
+                biases[i] = new float[nOut];
+                if (format == INT8) {
+                    getQuantized(buffer, weights[i], nIn, nOut);
+                } else {
+                    getFloats(buffer, weights[i]);
+                }
+                getFloats(buffer, biases[i]);
+            }
+            return new FastQNetwork(sizes, weights, biases, relu);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated policy file: " + file);
+        }
+    }
+
+    private static void getFloats(ByteBuffer buffer, float[] dst) {
+        if (buffer.remaining() < 4 * dst.length) {
+            throw new BufferUnderflowException();
+        }
+        buffer.asFloatBuffer().get(dst);
+        buffer.position(buffer.position() + 4 * dst.length);
+    }
+
+    private static void getQuantized(ByteBuffer buffer, float[] dst, int nIn, int nOut) {
+        float[] scales = new float[nOut];
+        getFloats(buffer, scales);
+        if (buffer.remaining() < dst.length) {
+            throw new BufferUnderflowException();
+        }
+        for (int out = 0; out < nOut; out++) {
+            for (int in = 0; in < nIn; in++) {
+                dst[out * nIn + in] = buffer.get() * scales[out];
+            }
+        }
+    }
+
+    private static String describe(int encoding) {
+        return encoding >= 0 && encoding < StateEncoding.values().length ? StateEncoding.values()[encoding].name().toLowerCase()
+                : "unknown";
+    }
+}
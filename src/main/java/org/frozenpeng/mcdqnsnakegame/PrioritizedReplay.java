@@ -0,0 +1,120 @@
+package org.frozenpeng.mcdqnsnakegame;
+
+import java.util.Random;
+
+/**
+ * Prioritized experience replay on top of a {@link ReplayStore}: each slot gets priority (|TD error| + e)^alpha
+ * in a {@link SumTree}, minibatches are drawn with stratified sampling over the priority mass, and every sample
+ * carries an importance-sampling weight, annealed from beta-start to 1, that corrects for the non-uniform draw.
+ * Fresh experiences get the highest priority seen so far, so each is replayed at least once soon after it is stored.
+ * <p>
+ * The trees take about 32 bytes per leaf, so a store of millions (a {@link MappedReplayBuffer}) is only prioritized
+ * over a window of the newest experiences: leaves are handed out in order of arrival and remember their slot.
+ */
+public class PrioritizedReplay {
+
+    public static final int DEFAULT_WINDOW = 1 << 20; // About 36 MB of priorities
+    private static final double PRIORITY_EPSILON = 1e-3; // Keeps zero-error experiences sampleable
+
+    private final ReplayStore buffer;
+    private final SumTree priorities;
+    private final int window;
+    private final int[] leafSlots; // Store slot of each leaf, or null when every slot has its own leaf
+    private final double alpha;
+    private final double betaStart;
+    private final long betaSteps;
+
+    private double maxPriority = 1;
+    private long samples;
+    private int nextLeaf;
+    private int leafCount; // Leaves holding an experience
+    private int[] sampledLeaves = new int[0];
+
+    /**
+     * @param window most experiences that are prioritized, the newest ones; the store's capacity if it is smaller
+     */
+    public PrioritizedReplay(ReplayStore buffer, double alpha, double betaStart, long betaSteps, int window) {
+        this.buffer = buffer;
+        this.window = Math.max(1, Math.min(window, buffer.capacity()));
+        this.priorities = new SumTree(this.window);
+        this.leafSlots = this.window < buffer.capacity() ? new int[this.window] : null;
+        this.alpha = alpha;
+        this.betaStart = betaStart;
+        this.betaSteps = Math.max(1, betaSteps);
+
+        // Experiences stored before prioritization was switched on start out equal. A window smaller than the store
+        // takes the newest, oldest first, so the leaves go on in order of arrival
+        int seeded = Math.min(buffer.size(), this.window);
+        int capacity = buffer.capacity();
+        for (int i = 0; i < seeded; i++) {
+            onAdd(leafSlots != null ? Math.floorMod(buffer.cursor() - seeded + i, capacity) : i);
+        }
+    }
+
+    /**
+     * Heap taken by the priorities of a window of this many experiences.
+     */
+    public static long heapBytes(int window) {
+        return SumTree.heapBytes(window) + (long) window * Integer.BYTES;
+    }
+
+    public int getWindow() {
+        return window;
+    }
+
+    /**
+     * Call after every {@link ReplayStore#add} with the slot it returned.
+     */
+    public void onAdd(int slot) {
+        int leaf = slot;
+        if (leafSlots != null) {
+            leaf = nextLeaf;
+            nextLeaf = (nextLeaf + 1) % window;
+            leafSlots[leaf] = slot;
+        }
+        leafCount = Math.min(Math.max(leafCount, leaf + 1), window);
+        priorities.set(leaf, Math.pow(maxPriority, alpha));
+    }
+
+    /**
+     * Fills the batch with one experience from each of batch.size equal slices of the priority mass,
+     * and sets batch.weights to the normalized importance-sampling weights.
+     */
+    public void sample(Random random, ReplayBuffer.Batch batch) {
+        double beta = Math.min(1.0, betaStart + (1.0 - betaStart) * samples / betaSteps);
+        samples++;
+        if (sampledLeaves.length != batch.size) {
+            sampledLeaves = new int[batch.size];
+        }
+
+        double total = priorities.total();
+        double segment = total / batch.size;
+        int size = leafCount;
+
+        // Largest weight belongs to the least likely experience; dividing by it keeps weights in (0, 1]
+        double maxWeight = Math.pow(size * priorities.min() / total, -beta);
+
+        for (int i = 0; i < batch.size; i++) {
+            int leaf = priorities.find((i + random.nextDouble()) * segment);
+            if (leaf >= size) {
+                leaf = size - 1;
+            }
+            sampledLeaves[i] = leaf;
+            batch.indices[i] = leafSlots != null ? leafSlots[leaf] : leaf;
+            double probability = priorities.get(leaf) / total;
+            batch.weights[i] = (float) (Math.pow(size * probability, -beta) / maxWeight);
+        }
+        buffer.gather(batch);
+    }
+
+    /**
+     * Refreshes the priorities of the last sampled batch's experiences from their latest TD errors.
+     */
+    public void updatePriorities(ReplayBuffer.Batch batch, float[] tdErrors) {
+        for (int i = 0; i < batch.size; i++) {
+            double priority = Math.abs(tdErrors[i]) + PRIORITY_EPSILON;
+            maxPriority = Math.max(maxPriority, priority);
+            priorities.set(sampledLeaves[i], Math.pow(priority, alpha));
+        }
+    }
+}
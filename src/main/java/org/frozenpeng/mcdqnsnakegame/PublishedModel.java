@@ -0,0 +1,60 @@
+package org.frozenpeng.mcdqnsnakegame;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+/**
+ * Two copies of a network that gameplay reads while the training thread publishes new weights, both allocated up
+ * front. The training thread loads the weights into the idle copy and swaps it in, so a publish costs one weight
+ * copy and allocates nothing. Gameplay {@link #acquire}s the current copy for one forward pass without ever waiting;
+ * the training thread only waits, before loading into a copy again, for a pass that still uses it.
+ */
+final class PublishedModel<T> {
+
+    private final AtomicReference<Copy<T>> current;
+    private Copy<T> idle; // Training thread only
+
+    PublishedModel(T first, T second) {
+        this.current = new AtomicReference<>(new Copy<>(first));
+        this.idle = new Copy<>(second);
+    }
+
+    /**
+     * The current copy, held by the calling thread until it calls {@link Copy#release}.
+     */
+    Copy<T> acquire() {
+        while (true) {
+            Copy<T> copy = current.get();
+            copy.readers.incrementAndGet();
+            if (current.get() == copy) {
+                return copy;
+            }
+            copy.readers.decrementAndGet(); // Swapped out in between, take the new one
+        }
+    }
+
+    /**
+     * Loads new weights into the idle copy and makes it the current one. Only called by the training thread.
+     */
+    void publish(Consumer<T> load) {
+        while (idle.readers.get() > 0) {
+            Thread.yield(); // A forward pass that started before the last publish, a few microseconds at most
+        }
+        load.accept(idle.value);
+        idle = current.getAndSet(idle);
+    }
+
+    static final class Copy<T> {
+        final T value;
+        private final AtomicInteger readers = new AtomicInteger();
+
+        Copy(T value) {
+            this.value = value;
+        }
+
+        void release() {
+            readers.decrementAndGet();
+        }
+    }
+}
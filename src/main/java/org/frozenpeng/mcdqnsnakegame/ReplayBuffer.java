@@ -0,0 +1,133 @@
+package org.frozenpeng.mcdqnsnakegame;
+
+import org.nd4j.linalg.api.ndarray.INDArray;
+
+import java.util.BitSet;
+
+/**
+ * Fixed-capacity replay memory stored as parallel primitive arrays. The cursor wraps around, so once the
+ * buffer is full every new experience overwrites the oldest one in O(1) and nothing is allocated per step.
+ */
+public class ReplayBuffer implements ReplayStore {
+
+    private final int capacity;
+    private final int stateSize;
+
+    private final float[] states;
+    private final float[] nextStates;
+    private final byte[] actions;
+    private final float[] rewards;
+    private final BitSet done;
+
+    private int cursor;
+    private int size;
+
+    /**
+     * Heap taken by one experience: both states, the reward, the action and its done bit (rounded up to a byte).
+     */
+    public static long bytesPerExperience(int stateSize) {
+        return 2L * stateSize * Float.BYTES + Float.BYTES + Byte.BYTES;
+    }
+
+    public ReplayBuffer(int capacity, int stateSize) {
+        this.capacity = capacity;
+        this.stateSize = stateSize;
+        this.states = new float[capacity * stateSize];
+        this.nextStates = new float[capacity * stateSize];
+        this.actions = new byte[capacity];
+        this.rewards = new float[capacity];
+        this.done = new BitSet(capacity);
+    }
+
+    @Override
+    public int add(INDArray state, Direction action, double reward, INDArray nextState, boolean done) {
+        int slot = cursor;
+        int offset = slot * stateSize;
+        for (int i = 0; i < stateSize; i++) {
+            states[offset + i] = state.getFloat(i);
+            nextStates[offset + i] = nextState.getFloat(i);
+        }
+        actions[slot] = (byte) action.ordinal();
+        rewards[slot] = (float) reward;
+        this.done.set(slot, done);
+
+        cursor = (cursor + 1) % capacity;
+        if (size < capacity) {
+            size++;
+        }
+        return slot;
+    }
+
+    @Override
+    public int add(float[] state, int stateOffset, Direction action, double reward, float[] nextState, int nextStateOffset, boolean done) {
+        int slot = cursor;
+        System.arraycopy(state, stateOffset, states, slot * stateSize, stateSize);
+        System.arraycopy(nextState, nextStateOffset, nextStates, slot * stateSize, stateSize);
+        actions[slot] = (byte) action.ordinal();
+        rewards[slot] = (float) reward;
+        this.done.set(slot, done);
+
+        cursor = (cursor + 1) % capacity;
+        if (size < capacity) {
+            size++;
+        }
+        return slot;
+    }
+
+    @Override
+    public void gather(Batch batch) {
+        for (int i = 0; i < batch.size; i++) {
+            int slot = batch.indices[i];
+            System.arraycopy(states, slot * stateSize, batch.states, i * stateSize, stateSize);
+            System.arraycopy(nextStates, slot * stateSize, batch.nextStates, i * stateSize, stateSize);
+            batch.actions[i] = actions[slot];
+            batch.rewards[i] = rewards[slot];
+            batch.notDone[i] = done.get(slot) ? 0 : 1;
+        }
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public int capacity() {
+        return capacity;
+    }
+
+    @Override
+    public int cursor() {
+        return cursor;
+    }
+
+    @Override
+    public int stateSize() {
+        return stateSize;
+    }
+
+    /**
+     * Reusable minibatch in row-major [size, stateSize] layout, ready to be wrapped into an INDArray.
+     */
+    public static class Batch {
+        final int size;
+        final int[] indices;
+        final float[] states;
+        final float[] nextStates;
+        final int[] actions;
+        final float[] rewards;
+        final float[] notDone;
+        final float[] weights; // Importance-sampling weights, only filled by PrioritizedReplay
+
+        public Batch(int size, int stateSize) {
+            this.size = size;
+            this.indices = new int[size];
+            this.states = new float[size * stateSize];
+            this.nextStates = new float[size * stateSize];
+            this.actions = new int[size];
+            this.rewards = new float[size];
+            this.notDone = new float[size];
+            this.weights = new float[size];
+        }
+    }
+}
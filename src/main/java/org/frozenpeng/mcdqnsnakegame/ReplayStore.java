@@ -0,0 +1,55 @@
+package org.frozenpeng.mcdqnsnakegame;
+
+import org.nd4j.linalg.api.ndarray.INDArray;
+
+import java.util.Random;
+
+/**
+ * Fixed-capacity ring of experiences that the agent stores into and samples minibatches from. Slots are
+ * numbered 0..capacity-1; once full, each add overwrites the oldest slot. Implementations are not thread-safe.
+ */
+public interface ReplayStore {
+
+    /**
+     * Stores one experience and returns the slot it was written to.
+     */
+    int add(INDArray state, Direction action, double reward, INDArray nextState, boolean done);
+
+    /**
+     * Same as {@link #add(INDArray, Direction, double, INDArray, boolean)}, reading the states from rows of
+     * row-major float buffers such as the ones filled by {@link VectorizedSnakeEnvironment#writeStates}.
+     */
+    int add(float[] state, int stateOffset, Direction action, double reward, float[] nextState, int nextStateOffset, boolean done);
+
+    /**
+     * Fills the batch with experiences drawn uniformly at random (with replacement).
+     */
+    default void sample(Random random, ReplayBuffer.Batch batch) {
+        for (int i = 0; i < batch.size; i++) {
+            batch.indices[i] = random.nextInt(size());
+        }
+        gather(batch);
+    }
+
+    /**
+     * Copies the experiences at batch.indices into the batch arrays.
+     */
+    void gather(ReplayBuffer.Batch batch);
+
+    int size();
+
+    int capacity();
+
+    /**
+     * The slot the next add writes to; the newest experience is in the slot before it.
+     */
+    int cursor();
+
+    int stateSize();
+
+    /**
+     * Releases any backing resources, making sure everything stored so far is persisted.
+     */
+    default void close() {
+    }
+}
@@ -0,0 +1,49 @@
+package org.frozenpeng.mcdqnsnakegame;
+
+/**
+ * Drives one {@link GameSession}: a player steering by where they look, a training run, an AI opponent.
+ */
+public interface SessionController {
+
+    /**
+     * Called for every session at the start of each tick, before any {@link #prepare}. Controllers that share work
+     * across sessions reset it here; it may be called once for each session sharing it.
+     */
+    default void beginTick() {
+    }
+
+    /**
+     * Called for every non-budgeted session due this tick before any of them steps. Controllers that share work
+     * across sessions, like {@link BatchedInference}, queue it here so it can run once for all of them.
+     */
+    default void prepare(GameSession session) {
+    }
+
+    /**
+     * Advances the session by one step. Called by the {@link GameManager} every tick interval of the session
+     * until the session is closed, including once after the game is over so the controller can restart or close it.
+     */
+    void step(GameSession session);
+
+    /**
+     * Whether the controller can take another step right now. Only consulted for sessions that run on the tick
+     * budget, so a controller that is waiting on something (a backed-up learner) doesn't burn the budget spinning.
+     */
+    default boolean isReady(GameSession session) {
+        return true;
+    }
+
+    /**
+     * Called once when the session is closed, whether by the controller itself, a new game of the same player or
+     * the plugin shutting down.
+     */
+    default void onClose(GameSession session) {
+    }
+
+    /**
+     * Whether the session's games go to the episode log, if recording is on. Playback of a recorded game says no.
+     */
+    default boolean isRecorded() {
+        return true;
+    }
+}
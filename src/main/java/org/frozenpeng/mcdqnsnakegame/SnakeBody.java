@@ -0,0 +1,79 @@
+package org.frozenpeng.mcdqnsnakegame;
+
+import java.util.BitSet;
+import java.util.Random;
+
+/**
+ * Snake segments as a ring-buffer deque of packed cell indices ({@code x * height + z}), head first,
+ * with an occupancy bitset over the board. Moving is a push at the head and a pop at the tail,
+ * and "is this cell part of the snake" is a single bit test. The complement is kept as a {@link FreeCellIndex}
+ * for food placement. Nothing is allocated after construction.
+ */
+public class SnakeBody {
+
+    private final int[] cells;
+    private final BitSet occupied;
+    private final FreeCellIndex freeCells;
+    private int headIndex;
+    private int size;
+
+    public SnakeBody(int boardCells) {
+        this.cells = new int[boardCells];
+        this.occupied = new BitSet(boardCells);
+        this.freeCells = new FreeCellIndex(boardCells);
+    }
+
+    public void clear() {
+        occupied.clear();
+        freeCells.reset();
+        headIndex = 0;
+        size = 0;
+    }
+
+    public void addHead(int cell) {
+        headIndex = headIndex == 0 ? cells.length - 1 : headIndex - 1;
+        cells[headIndex] = cell;
+        occupied.set(cell);
+        freeCells.remove(cell);
+        size++;
+    }
+
+    public int removeTail() {
+        int tailIndex = (headIndex + size - 1) % cells.length;
+        int cell = cells[tailIndex];
+        occupied.clear(cell);
+        freeCells.add(cell);
+        size--;
+        return cell;
+    }
+
+    public int head() {
+        return cells[headIndex];
+    }
+
+    public int tail() {
+        return cells[(headIndex + size - 1) % cells.length];
+    }
+
+    /**
+     * Segment i counted from the head.
+     */
+    public int get(int i) {
+        return cells[(headIndex + i) % cells.length];
+    }
+
+    public boolean contains(int cell) {
+        return occupied.get(cell);
+    }
+
+    /**
+     * A uniformly random cell the snake doesn't cover, or -1 if it covers the whole board.
+     */
+    public int randomFreeCell(Random random) {
+        return freeCells.randomCell(random);
+    }
+
+    public int size() {
+        return size;
+    }
+}
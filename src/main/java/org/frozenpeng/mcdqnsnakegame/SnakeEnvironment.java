@@ -0,0 +1,267 @@
+package org.frozenpeng.mcdqnsnakegame;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * The snake game itself: board, rules, state features, all kept in memory. A {@link GameSession} renders one
+ * into the world; headless training steps them directly from any thread as fast as the CPU allows.
+ * Cells are packed as {@code x * BOARD_HEIGHT + z}.
+ */
+public class SnakeEnvironment {
+
+    public static final int BOARD_WIDTH = 13;
+    public static final int BOARD_HEIGHT = 13;
+    public static final int STATE_SIZE = 8;
+
+    // Grid state: head, body and food planes, each [BOARD_HEIGHT, BOARD_WIDTH] row-major, channels first
+    public static final int GRID_CHANNELS = 3;
+    public static final int GRID_STATE_SIZE = GRID_CHANNELS * BOARD_WIDTH * BOARD_HEIGHT;
+    private static final int PLANE_SIZE = BOARD_WIDTH * BOARD_HEIGHT;
+    private static final int HEAD_PLANE = 0;
+    private static final int BODY_PLANE = PLANE_SIZE;
+    private static final int FOOD_PLANE = 2 * PLANE_SIZE;
+
+    private final SnakeBody body = new SnakeBody(BOARD_WIDTH * BOARD_HEIGHT);
+    // Updated cell by cell as the snake moves, so writing the grid state is a single arraycopy
+    private final float[] grid = new float[GRID_STATE_SIZE];
+
+    // Kept apart from the body so a head that left the board can still be reported
+    private int headX;
+    private int headZ;
+    private int foodX;
+    private int foodZ;
+    private Direction currentDirection;
+    private final Random random;
+    private boolean isGameOver;
+    private boolean collided;
+    private boolean growPending;
+    private int score;
+
+    boolean eaten_food;
+
+    public SnakeEnvironment() {
+        this(new Random());
+    }
+
+    public SnakeEnvironment(Random random) {
+        this.random = random;
+        reset();
+    }
+
+    public void reset() {
+        reset(Direction.UP);
+    }
+
+    /**
+     * Starts a game whose food placement is fully determined by seed, so the same seed and actions always replay
+     * the same game. This is what {@link EpisodeRecorder} relies on.
+     */
+    public void reset(Direction initialDirection, long seed) {
+        random.setSeed(seed);
+        reset(initialDirection);
+    }
+
+    public void reset(Direction initialDirection) {
+        body.clear();
+        Arrays.fill(grid, 0);
+        headX = BOARD_WIDTH / 2;
+        headZ = BOARD_HEIGHT / 2;
+        body.addHead(cellOf(headX, headZ));
+        grid[HEAD_PLANE + planeIndex(body.head())] = 1;
+
+        currentDirection = initialDirection;
+        isGameOver = false;
+        collided = false;
+        growPending = false;
+        eaten_food = false;
+        score = 0;
+
+        generateFood();
+    }
+
+    public void moveSnake(Direction direction) {
+        if (!direction.isOpposite(currentDirection)) {
+            currentDirection = direction;
+        }
+
+        headX += currentDirection.getX();
+        headZ += currentDirection.getZ();
+        if (!isInside(headX, headZ)) {
+            collided = true;
+            return;
+        }
+
+        // The tail leaves its cell before the head arrives, so following your own tail is legal.
+        // After eating, the tail stays put for one move instead, which is how the snake grows.
+        if (growPending) {
+            growPending = false;
+        } else {
+            int tail = planeIndex(body.removeTail());
+            grid[HEAD_PLANE + tail] = 0;
+            grid[BODY_PLANE + tail] = 0;
+        }
+
+        int newHead = cellOf(headX, headZ);
+        if (body.contains(newHead)) {
+            collided = true;
+        } else {
+            if (body.size() > 0) {
+                int oldHead = planeIndex(body.head());
+                grid[HEAD_PLANE + oldHead] = 0;
+                grid[BODY_PLANE + oldHead] = 1;
+            }
+            body.addHead(newHead);
+            grid[HEAD_PLANE + planeIndex(newHead)] = 1;
+        }
+    }
+
+    public void tick() {
+        if (collided) {
+            isGameOver = true;
+            return;
+        }
+
+        if (headX == foodX && headZ == foodZ) {
+            growPending = true;
+            score++;
+            grid[FOOD_PLANE + planeIndex(cellOf(foodX, foodZ))] = 0;
+            generateFood();
+            eaten_food = true;
+        }
+    }
+
+    /**
+     * Convenience for one full game step: {@code moveSnake} followed by {@code tick}.
+     */
+    public void step(Direction direction) {
+        moveSnake(direction);
+        tick();
+    }
+
+    // Any free cell, edges included. If the snake covers the whole board there is simply no food left.
+    private void generateFood() {
+        int cell = body.randomFreeCell(random);
+        if (cell < 0) {
+            foodX = -1;
+            foodZ = -1;
+            return;
+        }
+
+        foodX = cellX(cell);
+        foodZ = cellZ(cell);
+        grid[FOOD_PLANE + planeIndex(cell)] = 1;
+    }
+
+    public boolean isGameOver() {
+        return isGameOver;
+    }
+
+    public int getScore() {
+        return score;
+    }
+
+    public int getLength() {
+        return body.size();
+    }
+
+    public Direction getCurrentDirection() {
+        return currentDirection;
+    }
+
+    /**
+     * Head cell while the head is on the board; after a wall hit this is still the last cell it occupied.
+     */
+    public int getHeadCell() {
+        return body.head();
+    }
+
+    public int getHeadX() {
+        return headX;
+    }
+
+    public int getHeadZ() {
+        return headZ;
+    }
+
+    public int getTailCell() {
+        return body.tail();
+    }
+
+    /**
+     * Food cell, or -1 once the snake has filled the board.
+     */
+    public int getFoodCell() {
+        return foodX < 0 ? -1 : cellOf(foodX, foodZ);
+    }
+
+    public boolean isOccupied(int cell) {
+        return body.contains(cell);
+    }
+
+    /**
+     * Writes the 8 state features into dst starting at offset, so a batch of boards can share one row-major buffer:
+     * head x/z, food x/z, what lies to the snake's left, right and front (relative to its heading), and the heading.
+     * Reads only in-memory state and allocates nothing.
+     */
+    public void writeStateInfo(float[] dst, int offset) {
+        Direction left = currentDirection.turnLeft();
+        Direction right = currentDirection.turnRight();
+
+        dst[offset] = headX;
+        dst[offset + 1] = headZ;
+        dst[offset + 2] = foodX;
+        dst[offset + 3] = foodZ;
+        dst[offset + 4] = blockTypeAt(headX + left.getX(), headZ + left.getZ());
+        dst[offset + 5] = blockTypeAt(headX + right.getX(), headZ + right.getZ());
+        dst[offset + 6] = blockTypeAt(headX + currentDirection.getX(), headZ + currentDirection.getZ());
+        dst[offset + 7] = currentDirection.ordinal();
+    }
+
+    /**
+     * Writes the whole board as {@link #GRID_STATE_SIZE} floats into dst starting at offset: a head plane, a body plane
+     * and a food plane, each with a 1 on the cells they cover, laid out channels first and then z-major so that
+     * {@code InputType.convolutionalFlat(BOARD_HEIGHT, BOARD_WIDTH, GRID_CHANNELS)} reads them as an image.
+     * The planes are kept up to date as the game runs, so this is one bulk copy.
+     */
+    public void writeGridState(float[] dst, int offset) {
+        System.arraycopy(grid, 0, dst, offset, GRID_STATE_SIZE);
+    }
+
+    // Same codes the world-reading encoder used: 0 outside the floor (air), 1 body (lime), 2 empty floor (black),
+    // 3 food (red) and -1 for the head (green), which it didn't recognise.
+    private int blockTypeAt(int x, int z) {
+        if (!isInside(x, z)) {
+            return 0;
+        } else if (x == foodX && z == foodZ) {
+            return 3;
+        } else if (x == headX && z == headZ) {
+            return -1;
+        } else if (body.contains(cellOf(x, z))) {
+            return 1;
+        } else {
+            return 2;
+        }
+    }
+
+    private static boolean isInside(int x, int z) {
+        return x >= 0 && x < BOARD_WIDTH && z >= 0 && z < BOARD_HEIGHT;
+    }
+
+    // Position of a packed cell inside one plane of the grid state
+    private static int planeIndex(int cell) {
+        return cellZ(cell) * BOARD_WIDTH + cellX(cell);
+    }
+
+    public static int cellOf(int x, int z) {
+        return x * BOARD_HEIGHT + z;
+    }
+
+    public static int cellX(int cell) {
+        return cell / BOARD_HEIGHT;
+    }
+
+    public static int cellZ(int cell) {
+        return cell % BOARD_HEIGHT;
+    }
+}
@@ -2,15 +2,23 @@ package org.frozenpeng.mcdqnsnakegame;
 
 import org.bukkit.Bukkit;
 import org.bukkit.scheduler.BukkitRunnable;
-import org.bukkit.scheduler.BukkitTask;
 import org.deeplearning4j.nn.conf.MultiLayerConfiguration;
 import org.deeplearning4j.nn.conf.NeuralNetConfiguration;
+import org.deeplearning4j.nn.conf.WorkspaceMode;
+import org.deeplearning4j.nn.conf.inputs.InputType;
+import org.deeplearning4j.nn.conf.layers.ConvolutionLayer;
 import org.deeplearning4j.nn.conf.layers.DenseLayer;
 import org.deeplearning4j.nn.conf.layers.OutputLayer;
 import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
 import org.deeplearning4j.nn.weights.WeightInit;
 import org.deeplearning4j.util.ModelSerializer;
 import org.nd4j.linalg.activations.Activation;
+import org.nd4j.linalg.api.memory.MemoryWorkspace;
+import org.nd4j.linalg.api.memory.conf.WorkspaceConfiguration;
+import org.nd4j.linalg.api.memory.enums.AllocationPolicy;
+import org.nd4j.linalg.api.memory.enums.LearningPolicy;
+import org.nd4j.linalg.api.memory.enums.ResetPolicy;
+import org.nd4j.linalg.api.memory.enums.SpillPolicy;
 import org.nd4j.linalg.api.ndarray.INDArray;
 import org.nd4j.linalg.factory.Nd4j;
 import org.nd4j.linalg.learning.config.Adam;
@@ -18,43 +26,202 @@ import org.nd4j.linalg.lossfunctions.LossFunctions;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
+import java.util.Queue;
 import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
 
 public class SnakeGameDQNAgent {
 
-    private static final int BOARD_WIDTH = 13;
-    private static final int BOARD_HEIGHT = 13;
-    private static final int STATE_CHANNELS = 3; // Empty, Snake, Food
+    private static final int BOARD_WIDTH = SnakeEnvironment.BOARD_WIDTH;
+    private static final int BOARD_HEIGHT = SnakeEnvironment.BOARD_HEIGHT;
+    private static final int STATE_CHANNELS = SnakeEnvironment.GRID_CHANNELS; // Head, Body, Food
+    private static final int CONV_FILTERS = 16;
     private static final int ACTION_SIZE = 4; // Up, Down, Left, Right
-    private static final double GAMMA = 0.95; // Discount factor
     private static final double EPSILON = 1.0; // Exploration rate
     private static final double EPSILON_MIN = 0.01;
-    private static final double EPSILON_DECAY = 0.9999;
-    private static final int BATCH_SIZE = 32;
-    private static final int REPLAY_MEMORY_SIZE = 10000;
-
-    private MultiLayerNetwork model;
+    private static final int MAX_LEARNER_BACKLOG = 5000; // Transitions the actor may run ahead of the learner
+    private static final int MAX_HEADLESS_EPISODE_STEPS = 10000; // A looping policy would otherwise never finish an episode
+    private static final int EPISODE_IMPORT_BATCH = 256; // Transitions re-simulated per rememberBatch call
+    private static final int HEADLESS_PUBLISH_INTERVAL = 100; // Headless training steps between weights handed to gameplay
+
+    // Scratch memory for the arrays of one training step or one action pick, reused by every call on the same thread
+    // instead of leaving each short-lived INDArray to the garbage collector and ND4J's deallocator. Sized by the first
+    // call, then fixed; grows only if a later call needs more (a larger batch of boards).
+    private static final WorkspaceConfiguration SCRATCH_WORKSPACE = WorkspaceConfiguration.builder()
+            .policyAllocation(AllocationPolicy.STRICT)
+            .policyLearning(LearningPolicy.FIRST_LOOP)
+            .policyReset(ResetPolicy.BLOCK_LEFT)
+            .policySpill(SpillPolicy.REALLOCATE)
+            .build();
+    private static final String LEARN_WORKSPACE = "SNAKE_LEARN";
+    private static final String ACT_WORKSPACE = "SNAKE_ACT";
+    private static final int INFERENCE_CHECK_STATES = 256;
+    private static final float MAX_INFERENCE_DEVIATION = 1e-4f;
+
+    private final AgentConfig config; // Gamma, epsilon decay, batch size, replay size, learning rate, hidden layer size, state
+    private final StateEncoding stateEncoding;
+    private final int stateSize; // Floats per state: 8 features, or the whole board for the grid encoding
+    private volatile MultiLayerNetwork model; // null for an agent that only serves a policy, see fromPolicy
+    private final Object modelLock = new Object(); // Held while fitting, so checkpoints never copy half-updated weights
+    private volatile long modelVersion; // Bumped whenever model's weights change
     private Random random;
-    private List<Experience> replayMemory;
-    private double epsilon;
+    private ReplayStore replayMemory;
+    private final int batchSize;
+    private ReplayBuffer.Batch miniBatch;
+    private PrioritizedReplay prioritizedReplay; // null for uniform sampling
+    private final float[] tdErrors;
+    private final float[] actionMask; // [batchSize, ACTION_SIZE] one-hot of the sampled actions
+    private volatile double epsilon;
+    private final SnakeMetrics metrics;
+    private final AtomicBoolean headlessTraining = new AtomicBoolean(false);
+
+    // Pure-Java inference, when enabled. Gameplay acts with one of two Java copies of the weights, the one the
+    // training thread last published, and reads it without a lock. The training thread acts with its own copy,
+    // refreshed from model between its gradient steps. null with ND4J inference
+    private volatile PublishedModel<FastQNetwork> fastModels;
+    private final Consumer<FastQNetwork> loadFastCopy = copy -> copy.load(model);
+    private FastQNetwork trainingFastModel;
+    private long trainingFastModelVersion;
+
+    // ND4J inference: gameplay, including the in-world training actor, evaluates one of two copies of model that the
+    // training thread takes turns loading when it publishes weights, so a forward pass on the main thread never waits
+    // for a fit. null with Java inference
+    private volatile PublishedModel<MultiLayerNetwork> inferenceModels;
+    private final Consumer<MultiLayerNetwork> loadInferenceCopy = copy -> copy.params().assign(model.params());
+    private final INDArray actionInput; // Main thread scratch for one state
+    private volatile long publishedVersion; // Learner step of the weights gameplay acts with
+    private volatile AsyncLearner learner;
+    private volatile CheckpointManager checkpoints;
+    private final Queue<CompletableFuture<CheckpointManager.Snapshot>> snapshotRequests = new ConcurrentLinkedQueue<>();
 
     public SnakeGameDQNAgent() {
+        this(AgentConfig.defaults(), new SnakeMetrics());
+    }
+
+    public SnakeGameDQNAgent(AgentConfig config) {
+        this(config, new SnakeMetrics());
+    }
+
+    public SnakeGameDQNAgent(AgentConfig config, SnakeMetrics metrics) {
+        this(config, metrics, new ReplayBuffer(config.getReplayMemorySize(), config.getStateEncoding().size()));
+    }
+
+    /**
+     * An agent that keeps its experiences in replayMemory, e.g. a {@link MappedReplayBuffer}, instead of a heap
+     * buffer of the configured replay size.
+     */
+    public SnakeGameDQNAgent(AgentConfig config, SnakeMetrics metrics, ReplayStore replayMemory) {
+        if (replayMemory.stateSize() != config.getStateEncoding().size()) {
+            throw new IllegalArgumentException("Replay store holds states of size " + replayMemory.stateSize()
+                    + ", expected " + config.getStateEncoding().size());
+        }
+        this.config = config;
+        this.stateEncoding = config.getStateEncoding();
+        this.stateSize = stateEncoding.size();
         this.model = buildModel();
         this.random = new Random();
-        this.replayMemory = new ArrayList<>();
+        this.batchSize = config.getBatchSize();
+        this.replayMemory = replayMemory;
+        this.miniBatch = new ReplayBuffer.Batch(batchSize, stateSize);
+        this.actionInput = Nd4j.create(1, stateSize);
+        this.inferenceModels = inferenceCopies(model);
+        this.tdErrors = new float[batchSize];
+        this.actionMask = new float[batchSize * ACTION_SIZE];
+        this.epsilon = EPSILON;
+        this.metrics = metrics;
+        metrics.setReplayGauge(replayMemory::size, replayMemory.capacity());
+    }
+
+    // Gameplay only: no network, replay memory or ND4J arrays, just the policy's greedy actions
+    private SnakeGameDQNAgent(AgentConfig config, SnakeMetrics metrics, FastQNetwork policy) {
+        this.config = config;
+        this.stateEncoding = config.getStateEncoding();
+        this.stateSize = stateEncoding.size();
+        this.random = new Random();
+        this.batchSize = config.getBatchSize();
+        this.actionInput = null;
+        this.tdErrors = new float[0];
+        this.actionMask = new float[0];
         this.epsilon = EPSILON;
+        this.metrics = metrics;
+        this.fastModels = new PublishedModel<>(policy, policy); // Never published
+    }
+
+    /**
+     * An agent that serves greedy actions from a {@link PolicyFile} and nothing else. It never builds the network
+     * or a replay memory, so it can't train, save or load a model (see {@link #hasNetwork}). The policy has to have
+     * the layer sizes the agent section configures.
+     */
+    public static SnakeGameDQNAgent fromPolicy(AgentConfig config, SnakeMetrics metrics, File file) throws IOException {
+        FastQNetwork policy = PolicyFile.read(file, config.getStateEncoding());
+        int[] sizes = {config.getStateEncoding().size(), config.getHiddenLayerSize(), ACTION_SIZE};
+        if (config.getStateEncoding() != StateEncoding.FEATURES || !policy.hasShape(sizes, new boolean[]{true, false})) {
+            throw new IOException("Policy " + file + " doesn't match the network configured in the agent section");
+        }
+        return new SnakeGameDQNAgent(config, metrics, policy);
+    }
+
+    /**
+     * False for an agent built {@link #fromPolicy}, which can only play.
+     */
+    public boolean hasNetwork() {
+        return model != null;
+    }
+
+    private void requireNetwork() {
+        if (model == null) {
+            throw new IllegalStateException("This agent only serves a policy and has no network to train");
+        }
+    }
+
+    public ReplayStore getReplayStore() {
+        return replayMemory;
     }
 
     private MultiLayerConfiguration buildModelConfiguration() {
-        int stateSize = 8; // Number of features in your state representation from getStateInfo()
-        int hiddenLayerSize = 64; // Size of the hidden layer
+        int hiddenLayerSize = config.getHiddenLayerSize(); // Size of the hidden layer
+
+        if (stateEncoding == StateEncoding.GRID) {
+            // The board as a 3-channel 13x13 image: a padded 3x3 convolution sees each cell's neighbourhood,
+            // then the same dense head as the feature network. Input sizes follow from the input type.
+            return new NeuralNetConfiguration.Builder()
+                    .seed(123)
+                    .weightInit(WeightInit.XAVIER)
+                    .updater(new Adam(config.getLearningRate()))
+                    .trainingWorkspaceMode(WorkspaceMode.ENABLED)
+                    .inferenceWorkspaceMode(WorkspaceMode.ENABLED)
+                    .list()
+                    .layer(new ConvolutionLayer.Builder(3, 3)
+                            .nOut(CONV_FILTERS)
+                            .stride(1, 1)
+                            .padding(1, 1) // Keeps the 13x13 size, so cells along the walls are seen like any other
+                            .activation(Activation.RELU)
+                            .build())
+                    .layer(new DenseLayer.Builder()
+                            .nOut(hiddenLayerSize)
+                            .activation(Activation.RELU)
+                            .build())
+                    .layer(new OutputLayer.Builder(LossFunctions.LossFunction.MSE)
+                            .nOut(ACTION_SIZE)
+                            .activation(Activation.IDENTITY)
+                            .build())
+                    .setInputType(InputType.convolutionalFlat(BOARD_HEIGHT, BOARD_WIDTH, STATE_CHANNELS))
+                    .build();
+        }
 
         return new NeuralNetConfiguration.Builder()
                 .seed(123) // Random seed for reproducibility
                 .weightInit(WeightInit.XAVIER) // Weight initialization method
-                .updater(new Adam(0.001)) // Adam optimizer with learning rate 0.001
+                .updater(new Adam(config.getLearningRate())) // Adam optimizer, learning rate 0.001 by default
+                .trainingWorkspaceMode(WorkspaceMode.ENABLED) // Layer activations and gradients reuse workspace memory
+                .inferenceWorkspaceMode(WorkspaceMode.ENABLED)
                 .list()
                 .layer(new DenseLayer.Builder()
                         .nIn(stateSize) // Input size should match the size of your state representation
@@ -76,140 +243,717 @@ public class SnakeGameDQNAgent {
         return model;
     }
 
+    /**
+     * Epsilon-greedy action with the weights last published to gameplay. Like {@link #getGreedyActions}, for one
+     * thread at a time, the main thread on a server, and safe while the network is being trained.
+     */
     public Direction getAction(INDArray state) {
+        if (fastModels != null) {
+            return getAction(state.toFloatVector());
+        }
+        if (random.nextDouble() <= epsilon) {
+            return Direction.values()[random.nextInt(ACTION_SIZE)];
+        }
+        long start = System.nanoTime();
+        int actionIndex;
+        PublishedModel.Copy<MultiLayerNetwork> copy = inferenceModels.acquire();
+        try (MemoryWorkspace workspace = Nd4j.getWorkspaceManager().getAndActivateWorkspace(SCRATCH_WORKSPACE, ACT_WORKSPACE)) {
+            actionIndex = Nd4j.argMax(copy.value.output(state, false, workspace), 1).getInt(0);
+        } finally {
+            copy.release();
+        }
+        metrics.recordInference(System.nanoTime() - start);
+        return Direction.values()[actionIndex];
+    }
+
+    public Direction getAction(float[] state) {
+        PublishedModel<FastQNetwork> fast = fastModels;
         if (random.nextDouble() <= epsilon) {
             return Direction.values()[random.nextInt(ACTION_SIZE)];
+        }
+        long start = System.nanoTime();
+        int actionIndex;
+        if (fast != null) {
+            PublishedModel.Copy<FastQNetwork> copy = fast.acquire();
+            try {
+                actionIndex = copy.value.bestAction(state, 0);
+            } finally {
+                copy.release();
+            }
+        } else {
+            actionInput.data().setData(state);
+            PublishedModel.Copy<MultiLayerNetwork> copy = inferenceModels.acquire();
+            try (MemoryWorkspace workspace = Nd4j.getWorkspaceManager().getAndActivateWorkspace(SCRATCH_WORKSPACE, ACT_WORKSPACE)) {
+                actionIndex = Nd4j.argMax(copy.value.output(actionInput, false, workspace), 1).getInt(0);
+            } finally {
+                copy.release();
+            }
+        }
+        metrics.recordInference(System.nanoTime() - start);
+        return Direction.values()[actionIndex];
+    }
+
+    /**
+     * Epsilon-greedy actions for a row-major [N, state size] batch of states. With ND4J inference all greedy rows share a
+     * single forward pass; with Java inference each greedy row is evaluated directly. Acts with the network being
+     * trained, so only call it from the training thread, between gradient steps.
+     */
+    public void getActions(float[] states, Direction[] actions) {
+        Direction[] greedyActions = null;
+        for (int i = 0; i < actions.length; i++) {
+            if (random.nextDouble() <= epsilon) {
+                actions[i] = Direction.values()[random.nextInt(ACTION_SIZE)];
+            } else if (fastModels != null) {
+                long start = System.nanoTime();
+                actions[i] = Direction.values()[trainingFastModel().bestAction(states, i * stateSize)];
+                metrics.recordInference(System.nanoTime() - start);
+            } else {
+                if (greedyActions == null) {
+                    long start = System.nanoTime();
+                    greedyActions = new Direction[actions.length];
+                    greedyActions(model, states, actions.length, greedyActions);
+                    metrics.recordInference(System.nanoTime() - start);
+                }
+                actions[i] = greedyActions[i];
+            }
+        }
+    }
+
+    /**
+     * Greedy actions, no exploration, for the first count rows of a row-major [N, state size] batch. With ND4J this
+     * is a single forward pass for all rows, so the per-call overhead is paid once however many boards ask; with Java
+     * inference each row costs about a microsecond anyway. Acts with the weights last published to gameplay, so it
+     * is safe to call while the network is being trained and never waits for a gradient step; one thread at a time.
+     */
+    public void getGreedyActions(float[] states, int count, Direction[] actions) {
+        if (count == 0) {
+            return;
+        }
+        long start = System.nanoTime();
+        PublishedModel<FastQNetwork> fast = fastModels;
+        if (fast != null) {
+            PublishedModel.Copy<FastQNetwork> copy = fast.acquire();
+            try {
+                for (int i = 0; i < count; i++) {
+                    actions[i] = Direction.values()[copy.value.bestAction(states, i * stateSize)];
+                }
+            } finally {
+                copy.release();
+            }
         } else {
-            INDArray output = model.output(state);
-            int actionIndex = Nd4j.argMax(output, 1).getInt(0);
-            return Direction.values()[actionIndex];
+            PublishedModel.Copy<MultiLayerNetwork> copy = inferenceModels.acquire();
+            try {
+                greedyActions(copy.value, states, count, actions);
+            } finally {
+                copy.release();
+            }
+        }
+        metrics.recordInference(System.nanoTime() - start);
+    }
+
+    // One ND4J forward pass for the first count rows of states
+    private void greedyActions(MultiLayerNetwork network, float[] states, int count, Direction[] actions) {
+        float[] rows = states.length == count * stateSize ? states : Arrays.copyOf(states, count * stateSize);
+        try (MemoryWorkspace workspace = Nd4j.getWorkspaceManager().getAndActivateWorkspace(SCRATCH_WORKSPACE, ACT_WORKSPACE)) {
+            INDArray greedyActions = Nd4j.argMax(network.output(Nd4j.create(rows, new int[]{count, stateSize}), false, workspace), 1);
+            for (int i = 0; i < count; i++) {
+                actions[i] = Direction.values()[greedyActions.getInt(i)];
+            }
+        }
+    }
+
+    // Two networks with network's current weights that nothing trains
+    private static PublishedModel<MultiLayerNetwork> inferenceCopies(MultiLayerNetwork network) {
+        return new PublishedModel<>(inferenceCopy(network), inferenceCopy(network));
+    }
+
+    private static MultiLayerNetwork inferenceCopy(MultiLayerNetwork network) {
+        MultiLayerNetwork copy = new MultiLayerNetwork(network.getLayerWiseConfigurations().clone());
+        copy.init(network.params().dup(), false);
+        return copy;
+    }
+
+    // The training thread's Java copy of model, refreshed after every gradient step it made since the last call
+    private FastQNetwork trainingFastModel() {
+        if (trainingFastModel == null) {
+            trainingFastModel = new FastQNetwork(model);
+            trainingFastModelVersion = modelVersion;
+        } else if (trainingFastModelVersion != modelVersion) {
+            trainingFastModel.load(model);
+            trainingFastModelVersion = modelVersion;
+        }
+        return trainingFastModel;
+    }
+
+    /**
+     * Switches greedy action selection (gameplay, headless and actor steps) to {@link FastQNetwork}, after checking
+     * its Q-values against ND4J on states from random play. Returns false and keeps ND4J if the network can't be
+     * evaluated in Java or the outputs disagree.
+     */
+    public boolean enableJavaInference() {
+        requireNetwork();
+        synchronized (modelLock) {
+            fastModels = javaCopies(model);
+            inferenceModels = fastModels == null ? inferenceCopies(model) : null;
+            return fastModels != null;
+        }
+    }
+
+    // Two Java copies of network if it can be evaluated in Java and agrees with ND4J, otherwise null
+    private PublishedModel<FastQNetwork> javaCopies(MultiLayerNetwork network) {
+        FastQNetwork checked = checkedJavaNetwork(network);
+        return checked == null ? null : new PublishedModel<>(checked, new FastQNetwork(network));
+    }
+
+    // A Java copy of network if it can be evaluated in Java and agrees with ND4J, otherwise null
+    private FastQNetwork checkedJavaNetwork(MultiLayerNetwork network) {
+        if (!FastQNetwork.supports(network)) {
+            System.err.println("Java inference doesn't support this network, using ND4J");
+            return null;
+        }
+        FastQNetwork candidate = new FastQNetwork(network);
+        float deviation = candidate.maxDeviation(network, sampleStates(INFERENCE_CHECK_STATES), INFERENCE_CHECK_STATES);
+        if (deviation > MAX_INFERENCE_DEVIATION) {
+            System.err.println("Java inference deviates from ND4J by " + deviation + ", using ND4J");
+            return null;
+        }
+        return candidate;
+    }
+
+    /**
+     * Writes the current network as a compact {@link PolicyFile}, optionally int8-quantized. Returns the file size.
+     * Throws IllegalStateException if the network can't be evaluated in Java (convolutional grid networks).
+     */
+    public long exportPolicy(File file, boolean int8) throws IOException {
+        requireNetwork();
+        FastQNetwork snapshot;
+        synchronized (modelLock) {
+            if (!FastQNetwork.supports(model)) {
+                throw new IllegalStateException("Only dense networks can be exported as a policy");
+            }
+            snapshot = new FastQNetwork(model);
+        }
+        return PolicyFile.write(snapshot, stateEncoding, int8, file);
+    }
+
+    /**
+     * Largest absolute Q-value difference between a {@link PolicyFile} and the full network, over the same states
+     * {@link #enableJavaInference} checks. Float32 exports should be within rounding; int8 ones show the quantization error.
+     */
+    public float validatePolicy(File file) throws IOException {
+        requireNetwork();
+        FastQNetwork policy = PolicyFile.read(file, stateEncoding);
+        float[] states = sampleStates(INFERENCE_CHECK_STATES);
+        synchronized (modelLock) {
+            return policy.maxDeviation(model, states, INFERENCE_CHECK_STATES);
         }
     }
 
+    /**
+     * Whether the network holds anything worth saving: it has been trained or loaded since the agent was built.
+     */
+    public boolean hasTrainedModel() {
+        return modelVersion > 0;
+    }
+
+    public boolean isJavaInferenceEnabled() {
+        return fastModels != null;
+    }
+
+    private float[] sampleStates(int count) {
+        SnakeEnvironment environment = new SnakeEnvironment(new Random(42));
+        Random random = new Random(42);
+        float[] states = new float[count * stateSize];
+        for (int i = 0; i < count; i++) {
+            stateEncoding.write(environment, states, i * stateSize);
+            environment.step(Direction.values()[random.nextInt(ACTION_SIZE)]);
+            if (environment.isGameOver()) {
+                environment.reset();
+            }
+        }
+        return states;
+    }
+
+    /**
+     * Hands a copy of the current weights to gameplay and the actor. Called by the training thread between gradient
+     * steps. The weights are copied into the idle one of two preallocated networks, Java or ND4J (about 2 KB of
+     * parameters for the default 8-64-4 network), so nothing is built per publish; the main thread only swaps a reference.
+     */
+    void publishWeights(long version) {
+        if (fastModels != null) {
+            fastModels.publish(loadFastCopy);
+        } else {
+            inferenceModels.publish(loadInferenceCopy);
+        }
+        publishedVersion = version;
+    }
+
     public void remember(INDArray state, Direction action, double reward, INDArray nextState, boolean done) {
-        replayMemory.add(new Experience(state, action, reward, nextState, done));
-        if (replayMemory.size() > REPLAY_MEMORY_SIZE) {
-            replayMemory.remove(0);
+        onStored(replayMemory.add(state, action, reward, nextState, done));
+    }
+
+    public void remember(float[] state, Direction action, double reward, float[] nextState, boolean done) {
+        remember(state, 0, action, reward, nextState, 0, done);
+    }
+
+    /**
+     * Stores the transition whose state and next state start at the given offsets, e.g. in a slot of a larger buffer.
+     */
+    public void remember(float[] states, int stateOffset, Direction action, double reward, float[] nextStates, int nextStateOffset,
+                         boolean done) {
+        onStored(replayMemory.add(states, stateOffset, action, reward, nextStates, nextStateOffset, done));
+    }
+
+    /**
+     * Stores one transition per board, reading states and next states from row-major [count, state size] buffers.
+     */
+    public void rememberBatch(float[] states, Direction[] actions, double[] rewards, float[] nextStates, boolean[] done, int count) {
+        for (int i = 0; i < count; i++) {
+            onStored(replayMemory.add(states, i * stateSize, actions[i], rewards[i], nextStates, i * stateSize, done[i]));
         }
     }
 
-    public void replay() {
-        if (replayMemory.size() < BATCH_SIZE) return;
+    private void onStored(int slot) {
+        if (prioritizedReplay != null) {
+            prioritizedReplay.onAdd(slot);
+        }
+    }
+
+    /**
+     * Switches replay() to prioritized sampling: priorities (|TD error| + e)^alpha, importance-sampling
+     * exponent annealed from betaStart to 1 over betaSteps minibatches. Only the newest window experiences
+     * are sampled if the replay memory holds more.
+     */
+    public void enablePrioritizedReplay(double alpha, double betaStart, long betaSteps, int window) {
+        prioritizedReplay = new PrioritizedReplay(replayMemory, alpha, betaStart, betaSteps, window);
+    }
+
+    public PrioritizedReplay getPrioritizedReplay() {
+        return prioritizedReplay;
+    }
 
-        List<Experience> miniBatch = new ArrayList<>();
-        for (int i = 0; i < BATCH_SIZE; i++) {
-            int index = random.nextInt(replayMemory.size());
-            miniBatch.add(replayMemory.get(index));
+    /**
+     * Runs one training step on a sampled minibatch. Returns false if there aren't enough experiences yet.
+     */
+    public boolean replay() {
+        requireNetwork();
+        if (replayMemory.size() < batchSize) {
+            serveSnapshotRequests();
+            return false;
         }
 
-        for (Experience experience : miniBatch) {
-            INDArray target = model.output(experience.state);
-            int actionIndex = experience.action.ordinal();
+        if (prioritizedReplay != null) {
+            prioritizedReplay.sample(random, miniBatch);
+        } else {
+            replayMemory.sample(random, miniBatch);
+        }
+        Arrays.fill(actionMask, 0);
+        for (int i = 0; i < batchSize; i++) {
+            actionMask[i * ACTION_SIZE + miniBatch.actions[i]] = 1;
+        }
 
-            if (experience.done) {
-                target.putScalar(new int[]{0, actionIndex}, experience.reward);
-            } else {
-                double futureReward = experience.reward + GAMMA * model.output(experience.nextState).maxNumber().doubleValue();
-                target.putScalar(new int[]{0, actionIndex}, futureReward);
+        // Every array of the step, including the network's outputs, lives in this thread's reused workspace
+        // and is released in one go when it closes
+        try (MemoryWorkspace workspace = Nd4j.getWorkspaceManager().getAndActivateWorkspace(SCRATCH_WORKSPACE, LEARN_WORKSPACE)) {
+            // One forward pass per side for the whole minibatch: [batchSize, stateSize] -> [batchSize, ACTION_SIZE]
+            INDArray stateBatch = Nd4j.create(miniBatch.states, new int[]{batchSize, stateSize});
+            INDArray target = model.output(stateBatch, false, workspace);
+            INDArray maxNextQ = model.output(Nd4j.create(miniBatch.nextStates, new int[]{batchSize, stateSize}), false, workspace)
+                    .max(1).reshape(batchSize, 1);
+
+            // reward + gamma * max Q(nextState), with the future term masked out for terminal transitions
+            INDArray futureReward = maxNextQ.muli(Nd4j.create(miniBatch.notDone, new int[]{batchSize, 1}).castTo(maxNextQ.dataType()))
+                    .muli(config.getGamma())
+                    .addi(Nd4j.create(miniBatch.rewards, new int[]{batchSize, 1}).castTo(maxNextQ.dataType()));
+
+            INDArray mask = Nd4j.create(actionMask, new int[]{batchSize, ACTION_SIZE}).castTo(target.dataType());
+            INDArray predictedQ = target.mul(mask).sum(true, 1);
+            INDArray tdError = futureReward.sub(predictedQ);
+
+            INDArray targetQ = futureReward;
+            if (prioritizedReplay != null) {
+                // The MSE gradient is proportional to (prediction - target), so moving each target only weight
+                // of the way from the prediction scales that sample's gradient by its importance-sampling weight
+                INDArray weights = Nd4j.create(miniBatch.weights, new int[]{batchSize, 1}).castTo(target.dataType());
+                targetQ = predictedQ.add(tdError.mul(weights));
             }
 
-            model.fit(experience.state, target);
+            // Only the Q-value of the action actually taken is moved towards targetQ
+            target.muli(mask.rsub(1)).addi(mask.muliColumnVector(targetQ));
+
+            synchronized (modelLock) {
+                long fitStart = System.nanoTime();
+                model.fit(stateBatch, target);
+                modelVersion++;
+                metrics.recordFit(System.nanoTime() - fitStart, model.score());
+            }
+
+            if (prioritizedReplay != null) {
+                for (int i = 0; i < batchSize; i++) {
+                    tdErrors[i] = tdError.getFloat(i);
+                }
+                prioritizedReplay.updatePriorities(miniBatch, tdErrors);
+            }
         }
 
         if (epsilon > EPSILON_MIN) {
-            epsilon *= EPSILON_DECAY;
-        }
-    }
-
-//    public INDArray getStateFromGame(Main gameInstance) {
-//        INDArray state = Nd4j.zeros(1, STATE_CHANNELS, BOARD_HEIGHT, BOARD_WIDTH);
-//        for (int x = 0; x < BOARD_WIDTH; x++) {
-//            for (int z = 0; z < BOARD_HEIGHT; z++) {
-//                Material blockType = gameInstance.getBlockTypeAt(x, z);
-//                if (blockType == Material.BLACK_CONCRETE) {
-//                    state.putScalar(new int[]{0, 0, z, x}, 1); // Empty space
-//                } else if (blockType == Material.GREEN_CONCRETE || blockType == Material.LIME_CONCRETE) {
-//                    state.putScalar(new int[]{0, 1, z, x}, 1); // Snake
-//                } else if (blockType == Material.RED_CONCRETE) {
-//                    state.putScalar(new int[]{0, 2, z, x}, 1); // Food
-//                }
-//            }
-//        }
-//        return state;
-//    }
+            epsilon *= config.getEpsilonDecay();
+        }
+        if (checkpoints != null) {
+            checkpoints.onTrainingStep(this);
+        }
+        serveSnapshotRequests(); // Between two fits, so checkpoints never wait for one
+        return true;
+    }
 
     public void runTraining(Main gameInstance, int episodes) {
-        trainEpisode(gameInstance, 1, episodes);
+        requireNetwork();
+        publishedVersion = 0;
+        learner = new AsyncLearner(this, gameInstance, gameInstance.getConfig().getInt("learner.publish-interval", 100),
+                MAX_LEARNER_BACKLOG);
+        learner.runTaskAsynchronously(gameInstance);
+
+        // As many steps per tick as the tick budget allows
+        gameInstance.getGameManager().startSession(Bukkit.getWorlds().get(0), null, GameManager.BUDGETED, Direction.UP, new TrainingController(episodes));
     }
 
-    private void trainEpisode(Main gameInstance, int current_episode, int episodes) {
-        gameInstance.startSnakeGame(null);
+    /**
+     * Plays training episodes back to back on one board. Each step only picks an action with the actor network
+     * and hands the transition to the learner thread; if the learner falls too far behind, the actor waits.
+     */
+    private class TrainingController implements SessionController {
+        private final int episodes;
+        private int currentEpisode = 1;
+        private double totalReward;
+        private int episodeSteps;
+        private boolean episodeStarted;
+        // Two reused buffers, swapped every step
+        private float[] state = new float[stateSize];
+        private float[] nextState = new float[stateSize];
+
+        TrainingController(int episodes) {
+            this.episodes = episodes;
+        }
 
+        @Override
+        public boolean isReady(GameSession session) {
+            return getLearnerQueueDepth() < MAX_LEARNER_BACKLOG;
+        }
 
-        // Schedule a task to run every TICK_INTERVAL ticks
-        int TICK_INTERVAL = 1; // Adjust this as needed
-        BukkitTask task = new BukkitRunnable() {
-            double totalReward = 0;
-            INDArray state = gameInstance.getStateInfo();
+        // However the session ends, the learner trains on what is queued and stops
+        @Override
+        public void onClose(GameSession session) {
+            learner.finish();
+        }
 
-            @Override
-            public void run() {
-                if (!gameInstance.isGameOver()) {
-                    Direction action = getAction(state);
-                    gameInstance.moveSnake(action);
-                    gameInstance.tick();
+        @Override
+        public void step(GameSession session) {
+            if (!episodeStarted) {
+                stateEncoding.write(session.getGame(), state, 0);
+                episodeStarted = true;
+            }
+
+            if (!session.isGameOver()) {
+                Direction action = getAction(state);
+                session.moveSnake(action);
+                session.tick();
 
-                    INDArray nextState = gameInstance.getStateInfo();
-                    double reward = calculateReward(gameInstance);
-                    boolean done = gameInstance.isGameOver();
+                stateEncoding.write(session.getGame(), nextState, 0);
+                double reward = calculateReward(session.getGame());
+                boolean done = session.isGameOver();
 
-                    remember(state, action, reward, nextState, done);
-                    replay();
+                // Training happens on the learner thread; this tick only hands the transition over
+                learner.submit(state, action, reward, nextState, done);
 
-                    state = nextState;
-                    totalReward += reward;
+                float[] previousState = state;
+                state = nextState;
+                nextState = previousState;
+                totalReward += reward;
+                episodeSteps++;
+                metrics.recordEnvironmentSteps(1);
+            } else {
+                metrics.recordEpisode(episodeSteps, session.getGame().getScore(), totalReward);
+                if (checkpoints != null) {
+                    checkpoints.onEpisodeFinished(SnakeGameDQNAgent.this);
+                }
+                Bukkit.broadcastMessage(String.format("Episode: %d, Total Reward: %.3f, Epsilon: %.4f, Learner queue: %d, Weight staleness: %d steps",
+                        currentEpisode, totalReward, epsilon, getLearnerQueueDepth(), getWeightStaleness()));
+                if (currentEpisode < episodes) {
+                    currentEpisode++;
+                    totalReward = 0;
+                    episodeSteps = 0;
+                    episodeStarted = false;
+                    session.restart(Direction.UP);
                 } else {
-                    Bukkit.broadcastMessage(String.format("Episode: %d, Total Reward: %.3s, Epsilon: %.4s", current_episode, totalReward, epsilon));
-                    if (current_episode < episodes) {
-                        trainEpisode(gameInstance, current_episode + 1, episodes);
+                    session.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Trains against {@code boards} in-memory {@link SnakeEnvironment}s on an async thread instead of one step per
+     * server tick. Progress is broadcast back on the main thread. Returns false if a headless run is already in progress.
+     */
+    public boolean runHeadlessTraining(Main gameInstance, int episodes, int boards) {
+        requireNetwork();
+        if (!headlessTraining.compareAndSet(false, true)) {
+            return false;
+        }
+
+        new BukkitRunnable() {
+            @Override
+            public void run() {
+                try {
+                    trainHeadless(episodes, boards, gameInstance::isEnabled, message -> {
+                        if (gameInstance.isEnabled()) {
+                            Bukkit.getScheduler().runTask(gameInstance, () -> Bukkit.broadcastMessage(message));
+                        }
+                    });
+                } finally {
+                    headlessTraining.set(false);
+                }
+            }
+        }.runTaskAsynchronously(gameInstance);
+        return true;
+    }
+
+    /**
+     * Trains on {@code boards} in-memory environments on the calling thread until {@code episodes} episodes have
+     * finished or keepRunning turns false. About ten progress messages go to progress, if it isn't null.
+     */
+    public void trainHeadless(int episodes, int boards, BooleanSupplier keepRunning, Consumer<String> progress) {
+        requireNetwork();
+        VectorizedSnakeEnvironment environments = new VectorizedSnakeEnvironment(boards);
+        float[] states = new float[boards * stateSize];
+        float[] nextStates = new float[boards * stateSize];
+        Direction[] actions = new Direction[boards];
+        double[] rewards = new double[boards];
+        boolean[] done = new boolean[boards];
+        int[] episodeSteps = new int[boards];
+        int progressInterval = Math.max(1, episodes / 10);
+
+        int finishedEpisodes = 0;
+        long trainingSteps = 0;
+        int episodesSinceLastReport = 0;
+        double rewardSinceLastReport = 0;
+        double[] episodeRewards = new double[boards];
+
+        environments.writeStates(states, stateEncoding);
+        while (finishedEpisodes < episodes && keepRunning.getAsBoolean()) {
+            getActions(states, actions);
+            environments.step(actions);
+            environments.writeStates(nextStates, stateEncoding);
+            metrics.recordEnvironmentSteps(boards);
+
+            for (int i = 0; i < boards; i++) {
+                SnakeEnvironment environment = environments.get(i);
+                rewards[i] = calculateReward(environment);
+                done[i] = environment.isGameOver();
+                episodeRewards[i] += rewards[i];
+            }
+            rememberBatch(states, actions, rewards, nextStates, done, boards);
+            if (replay() && ++trainingSteps % HEADLESS_PUBLISH_INTERVAL == 0) {
+                publishWeights(trainingSteps);
+            }
+
+            // Restart finished boards in place; their fresh state becomes next step's input
+            for (int i = 0; i < boards && finishedEpisodes < episodes; i++) {
+                if (++episodeSteps[i] < MAX_HEADLESS_EPISODE_STEPS && !done[i]) {
+                    continue;
+                }
+                metrics.recordEpisode(episodeSteps[i], environments.get(i).getScore(), episodeRewards[i]);
+                if (checkpoints != null) {
+                    checkpoints.onEpisodeFinished(this);
+                }
+                finishedEpisodes++;
+                episodesSinceLastReport++;
+                rewardSinceLastReport += episodeRewards[i];
+                episodeRewards[i] = 0;
+                episodeSteps[i] = 0;
+                environments.get(i).reset();
+                stateEncoding.write(environments.get(i), nextStates, i * stateSize);
+
+                if (finishedEpisodes % progressInterval == 0 || finishedEpisodes == episodes) {
+                    String message = String.format("Headless episode: %d/%d, Average Reward: %.3f, Epsilon: %.4f",
+                            finishedEpisodes, episodes, rewardSinceLastReport / episodesSinceLastReport, epsilon);
+                    episodesSinceLastReport = 0;
+                    rewardSinceLastReport = 0;
+                    if (progress != null) {
+                        progress.accept(message);
                     }
-                    cancel(); // End the task when the episode is over
                 }
             }
-        }.runTaskTimer(gameInstance, 0, TICK_INTERVAL);
 
-        // Print episode information after the task completes
-        task.getTaskId();
+            float[] previousStates = states;
+            states = nextStates;
+            nextStates = previousStates;
+        }
+        publishWeights(trainingSteps);
     }
 
+    /**
+     * Re-simulates the recorded games in an {@link EpisodeRecorder} log on an async thread and adds their transitions
+     * to the replay memory. The result is broadcast back on the main thread. Returns false if training is running.
+     */
+    public boolean runEpisodeImport(Main gameInstance, File log) {
+        requireNetwork();
+        // Shares the headless flag: both fill the replay memory from an async thread, so only one may run
+        if (!headlessTraining.compareAndSet(false, true)) {
+            return false;
+        }
 
-    private double calculateReward(Main gameInstance) {
-        if (gameInstance.isGameOver()) {
-            return -10; // Penalty for game over
-        } else if (gameInstance.eaten_food) {
-            gameInstance.eaten_food = false;
-            return 10; // Reward for eating food
-        } else {
-            return -0.1; // Small penalty for each move to encourage efficiency
+        new BukkitRunnable() {
+            @Override
+            public void run() {
+                String message;
+                try (EpisodeReader reader = new EpisodeReader(log)) {
+                    long start = System.nanoTime();
+                    long transitions = rememberEpisodes(reader);
+                    message = String.format("Imported %d transitions from %s in %d ms", transitions, log.getName(),
+                            (System.nanoTime() - start) / 1_000_000);
+                } catch (IOException e) {
+                    System.err.println("Error reading episode log " + log);
+                    e.printStackTrace();
+                    message = "Error reading episode log " + log.getName() + ", see the server log.";
+                } finally {
+                    headlessTraining.set(false);
+                }
+                if (gameInstance.isEnabled()) {
+                    String result = message;
+                    Bukkit.getScheduler().runTask(gameInstance, () -> Bukkit.broadcastMessage(result));
+                }
+            }
+        }.runTaskAsynchronously(gameInstance);
+        return true;
+    }
+
+    /**
+     * Replays every remaining game of reader on an in-memory environment and stores each step as a transition, with
+     * the same rewards as training, through {@link #rememberBatch}. Games the current rules no longer reproduce are
+     * skipped. Returns the number of transitions stored. Must not run concurrently with training.
+     */
+    public long rememberEpisodes(EpisodeReader reader) throws IOException {
+        SnakeEnvironment environment = new SnakeEnvironment();
+        float[] states = new float[EPISODE_IMPORT_BATCH * stateSize];
+        float[] nextStates = new float[EPISODE_IMPORT_BATCH * stateSize];
+        Direction[] actions = new Direction[EPISODE_IMPORT_BATCH];
+        double[] rewards = new double[EPISODE_IMPORT_BATCH];
+        boolean[] done = new boolean[EPISODE_IMPORT_BATCH];
+        int pending = 0;
+        long stored = 0;
+        int skipped = 0;
+
+        while (reader.next()) {
+            if (!reader.restart(environment)) {
+                skipped++;
+                continue;
+            }
+            for (int step = 0; step < reader.getSteps() && !environment.isGameOver(); step++) {
+                stateEncoding.write(environment, states, pending * stateSize);
+                actions[pending] = reader.getAction(step);
+                environment.step(actions[pending]);
+                stateEncoding.write(environment, nextStates, pending * stateSize);
+                rewards[pending] = calculateReward(environment);
+                done[pending] = environment.isGameOver();
+                if (++pending == EPISODE_IMPORT_BATCH) {
+                    rememberBatch(states, actions, rewards, nextStates, done, pending);
+                    stored += pending;
+                    pending = 0;
+                }
+            }
         }
+        rememberBatch(states, actions, rewards, nextStates, done, pending);
+        stored += pending;
+        if (skipped > 0) {
+            System.err.println("Skipped " + skipped + " recorded episodes that no longer replay under the current rules");
+        }
+        return stored;
     }
 
-    private class Experience {
-        INDArray state;
-        Direction action;
-        double reward;
-        INDArray nextState;
-        boolean done;
+    /**
+     * Asks for a copy of the network for a checkpoint. The copy is made by the next {@link #serveSnapshotRequests}
+     * call, which the training thread makes between gradient steps.
+     */
+    Future<CheckpointManager.Snapshot> requestSnapshot() {
+        CompletableFuture<CheckpointManager.Snapshot> request = new CompletableFuture<>();
+        snapshotRequests.add(request);
+        return request;
+    }
 
-        Experience(INDArray state, Direction action, double reward, INDArray nextState, boolean done) {
-            this.state = state;
-            this.action = action;
-            this.reward = reward;
-            this.nextState = nextState;
-            this.done = done;
+    /**
+     * Copies the network's configuration, parameters and updater state once for all pending snapshot requests.
+     * Called by whichever thread trains the network, or by the checkpoint writer when nothing does.
+     */
+    void serveSnapshotRequests() {
+        if (snapshotRequests.isEmpty()) {
+            return;
+        }
+        CheckpointManager.Snapshot snapshot = null;
+        RuntimeException failure = null;
+        try {
+            synchronized (modelLock) {
+                MultiLayerNetwork current = model;
+                INDArray updaterState = current.getUpdater().getStateViewArray();
+                snapshot = new CheckpointManager.Snapshot(current.getLayerWiseConfigurations().clone(), current.params().dup(),
+                        updaterState == null ? null : updaterState.dup());
+            }
+        } catch (RuntimeException e) {
+            failure = e;
+        }
+        CompletableFuture<CheckpointManager.Snapshot> request;
+        while ((request = snapshotRequests.poll()) != null) {
+            if (failure != null) {
+                request.completeExceptionally(failure);
+            } else {
+                request.complete(snapshot);
+            }
         }
     }
 
+    /**
+     * Enables auto-saving from training: the manager is told about every finished episode and training step.
+     */
+    public void setCheckpointManager(CheckpointManager checkpoints) {
+        this.checkpoints = checkpoints;
+    }
+
+    public AgentConfig getConfig() {
+        return config;
+    }
+
+    public SnakeMetrics getMetrics() {
+        return metrics;
+    }
+
+    public boolean isTraining() {
+        AsyncLearner currentLearner = learner;
+        return headlessTraining.get() || currentLearner != null && currentLearner.isRunning();
+    }
+
+    public int getLearnerQueueDepth() {
+        AsyncLearner currentLearner = learner;
+        return currentLearner == null ? 0 : currentLearner.getQueueDepth();
+    }
+
+    /**
+     * Number of learner steps the actor's weights are behind the network being trained.
+     */
+    public long getWeightStaleness() {
+        AsyncLearner currentLearner = learner;
+        return currentLearner == null ? 0 : currentLearner.getLearnerSteps() - publishedVersion;
+    }
+
+    private double calculateReward(SnakeEnvironment environment) {
+        if (environment.isGameOver()) {
+            return -10;
+        } else if (environment.eaten_food) {
+            environment.eaten_food = false;
+            return 10;
+        } else {
+            return -0.1;
+        }
+    }
 
     public double getEpsilon() {
         return epsilon;
@@ -220,37 +964,59 @@ public class SnakeGameDQNAgent {
     }
 
 
-    public void saveModel(String filename) {
+    // A model saved under the other agent.state setting expects a different input and would fail on the first action
+    private boolean acceptsStates(MultiLayerNetwork network) {
         try {
-            File locationToSave = new File(filename);
-
-            // Create parent directories if they don't exist
-            if (!locationToSave.getParentFile().exists()) {
-                locationToSave.getParentFile().mkdirs();
-            }
-
-            ModelSerializer.writeModel(model, locationToSave, true);
-            System.out.println("Model saved successfully to: " + filename);
-        } catch (IOException e) {
-            System.err.println("Error saving model to file " + filename);
-            e.printStackTrace();
+            network.output(Nd4j.zeros(1, stateSize));
+            return true;
+        } catch (RuntimeException e) {
+            return false;
         }
     }
-    public void loadModel(String filename) {
+
+    /**
+     * Replaces the network with the one saved in filename and hands it to gameplay in the same swap. Refused while
+     * training runs, and if the file is missing or was trained on the other state encoding. Returns whether it loaded.
+     */
+    public boolean loadModel(String filename) {
+        if (model == null) {
+            System.err.println("Not loading " + filename + " into an agent that only serves a policy");
+            return false;
+        }
+        if (isTraining()) {
+            System.err.println("Not loading " + filename + " while training is running");
+            return false;
+        }
         try {
             File locationToLoad = new File(filename);
 
             // Check if file exists before attempting to load
             if (!locationToLoad.exists()) {
                 System.err.println("Model file not found: " + filename);
-                return;
+                return false;
             }
 
-            model = ModelSerializer.restoreMultiLayerNetwork(locationToLoad);
+            MultiLayerNetwork loaded = ModelSerializer.restoreMultiLayerNetwork(locationToLoad);
+            if (!acceptsStates(loaded)) {
+                System.err.println("Model in " + filename + " was not trained on " + stateEncoding.name().toLowerCase()
+                        + " states, keeping the current model");
+                return false;
+            }
+            // The loaded network may have a different shape, so gameplay gets fresh Java copies checked against it
+            PublishedModel<FastQNetwork> fast = fastModels != null ? javaCopies(loaded) : null;
+            synchronized (modelLock) {
+                model = loaded;
+                modelVersion++;
+                fastModels = fast;
+                trainingFastModel = null;
+                inferenceModels = fast == null ? inferenceCopies(loaded) : null;
+            }
             System.out.println("Model loaded successfully from: " + filename);
+            return true;
         } catch (IOException e) {
             System.err.println("Error loading model from file " + filename);
             e.printStackTrace();
+            return false;
         }
     }
 
@@ -0,0 +1,174 @@
+package org.frozenpeng.mcdqnsnakegame;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+
+/**
+ * Training and gameplay telemetry. Hot paths only bump {@link LongAdder}s or record into {@link LatencyHistogram}s,
+ * so recording is lock-free from the main thread, the learner and headless training alike. {@link #snapshot()}
+ * reads everything into one ordered map that the /snakestats command and the {@link MetricsExporter} both render.
+ */
+public class SnakeMetrics {
+
+    private static final int ROLLING_EPISODES = 100;
+    private static final long RATE_WINDOW_NANOS = 1_000_000_000L;
+    private static final double LOSS_SMOOTHING = 0.01;
+
+    private final LongAdder environmentSteps = new LongAdder();
+    private final LongAdder episodes = new LongAdder();
+    private final LongAdder blockWrites = new LongAdder();
+    private final LatencyHistogram inferenceNanos = new LatencyHistogram();
+    private final LatencyHistogram fitNanos = new LatencyHistogram();
+    private final LatencyHistogram tickNanos = new LatencyHistogram();
+
+    // Rolling window over the last ROLLING_EPISODES episodes. Only touched once per episode, so a lock is fine here
+    private final double[] recentRewards = new double[ROLLING_EPISODES];
+    private final int[] recentScores = new int[ROLLING_EPISODES];
+    private final int[] recentLengths = new int[ROLLING_EPISODES];
+    private int recentCursor;
+    private int recentCount;
+
+    private volatile double lastLoss = Double.NaN;
+    private volatile double averageLoss = Double.NaN;
+    private volatile double stepsPerSecond;
+    private long rateWindowStart = System.nanoTime();
+    private long rateWindowSteps;
+
+    private volatile IntSupplier replaySize = () -> 0;
+    private volatile int replayCapacity;
+
+    public void recordEnvironmentSteps(long steps) {
+        environmentSteps.add(steps);
+    }
+
+    public void recordInference(long nanos) {
+        inferenceNanos.record(nanos);
+    }
+
+    /**
+     * One gradient step and the minibatch loss it reported. Called from a single training thread at a time.
+     */
+    public void recordFit(long nanos, double loss) {
+        fitNanos.record(nanos);
+        lastLoss = loss;
+        averageLoss = Double.isNaN(averageLoss) ? loss : averageLoss + LOSS_SMOOTHING * (loss - averageLoss);
+    }
+
+    /**
+     * Time the plugin spent in one server tick. Also rolls the steps-per-second window, so only call it from the main thread.
+     */
+    public void recordTick(long nanos) {
+        tickNanos.record(nanos);
+
+        long now = System.nanoTime();
+        if (now - rateWindowStart >= RATE_WINDOW_NANOS) {
+            long steps = environmentSteps.sum();
+            stepsPerSecond = (steps - rateWindowSteps) * 1e9 / (now - rateWindowStart);
+            rateWindowSteps = steps;
+            rateWindowStart = now;
+        }
+    }
+
+    /**
+     * Blocks written to the world, by painting new boards or flushing their changes.
+     */
+    public void recordBlockWrites(int blocks) {
+        blockWrites.add(blocks);
+    }
+
+    public long getBlockWrites() {
+        return blockWrites.sum();
+    }
+
+    public synchronized void recordEpisode(int length, int score, double totalReward) {
+        episodes.increment();
+        recentRewards[recentCursor] = totalReward;
+        recentScores[recentCursor] = score;
+        recentLengths[recentCursor] = length;
+        recentCursor = (recentCursor + 1) % ROLLING_EPISODES;
+        recentCount = Math.min(recentCount + 1, ROLLING_EPISODES);
+    }
+
+    /**
+     * Average score over the last 100 episodes, 0 before the first one.
+     */
+    public synchronized double getRollingAverageScore() {
+        double score = 0;
+        for (int i = 0; i < recentCount; i++) {
+            score += recentScores[i];
+        }
+        return recentCount == 0 ? 0 : score / recentCount;
+    }
+
+    public void setReplayGauge(IntSupplier size, int capacity) {
+        this.replaySize = size;
+        this.replayCapacity = capacity;
+    }
+
+    /**
+     * Current values, in display order. Latencies are in microseconds.
+     */
+    public Map<String, Number> snapshot() {
+        Map<String, Number> values = new LinkedHashMap<>();
+        values.put("env_steps", environmentSteps.sum());
+        values.put("env_steps_per_sec", round(stepsPerSecond));
+        values.put("episodes", episodes.sum());
+        synchronized (this) {
+            double reward = 0;
+            double score = 0;
+            double length = 0;
+            for (int i = 0; i < recentCount; i++) {
+                reward += recentRewards[i];
+                score += recentScores[i];
+                length += recentLengths[i];
+            }
+            int n = Math.max(1, recentCount);
+            values.put("avg_reward_" + ROLLING_EPISODES, round(reward / n));
+            values.put("avg_score_" + ROLLING_EPISODES, round(score / n));
+            values.put("avg_episode_length_" + ROLLING_EPISODES, round(length / n));
+        }
+        values.put("block_writes", blockWrites.sum());
+        values.put("replay_size", replaySize.getAsInt());
+        values.put("replay_capacity", replayCapacity);
+        values.put("loss", round(lastLoss));
+        values.put("loss_avg", round(averageLoss));
+        putLatency(values, "inference", inferenceNanos);
+        putLatency(values, "fit", fitNanos);
+        putLatency(values, "tick", tickNanos);
+        return values;
+    }
+
+    /**
+     * Clears all counters and histograms. Main thread only, like {@link #recordTick}.
+     */
+    public void reset() {
+        environmentSteps.reset();
+        episodes.reset();
+        blockWrites.reset();
+        inferenceNanos.reset();
+        fitNanos.reset();
+        tickNanos.reset();
+        synchronized (this) {
+            recentCursor = 0;
+            recentCount = 0;
+        }
+        lastLoss = Double.NaN;
+        averageLoss = Double.NaN;
+        rateWindowSteps = 0;
+    }
+
+    private static void putLatency(Map<String, Number> values, String name, LatencyHistogram histogram) {
+        values.put(name + "_count", histogram.getCount());
+        values.put(name + "_mean_us", round(histogram.getMean() / 1000));
+        values.put(name + "_p50_us", round(histogram.getPercentile(50) / 1000.0));
+        values.put(name + "_p99_us", round(histogram.getPercentile(99) / 1000.0));
+        values.put(name + "_max_us", round(histogram.getMax() / 1000.0));
+    }
+
+    // Three decimals; NaN (no loss reported yet) passes through
+    private static double round(double value) {
+        return Double.isNaN(value) ? value : Math.round(value * 1000) / 1000.0;
+    }
+}
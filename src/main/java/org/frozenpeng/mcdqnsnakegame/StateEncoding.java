@@ -0,0 +1,43 @@
+package org.frozenpeng.mcdqnsnakegame;
+
+/**
+ * How a {@link SnakeEnvironment} is turned into the network's input. Both read only in-memory game state.
+ */
+public enum StateEncoding {
+
+    /**
+     * The 8 hand-picked features of {@link SnakeEnvironment#writeStateInfo}, fed to a dense network.
+     */
+    FEATURES(SnakeEnvironment.STATE_SIZE) {
+        @Override
+        public void write(SnakeEnvironment environment, float[] dst, int offset) {
+            environment.writeStateInfo(dst, offset);
+        }
+    },
+
+    /**
+     * The full board as head, body and food planes from {@link SnakeEnvironment#writeGridState}, fed to a
+     * convolutional network. Sees every segment, so it doesn't lose track of long snakes.
+     */
+    GRID(SnakeEnvironment.GRID_STATE_SIZE) {
+        @Override
+        public void write(SnakeEnvironment environment, float[] dst, int offset) {
+            environment.writeGridState(dst, offset);
+        }
+    };
+
+    private final int size;
+
+    StateEncoding(int size) {
+        this.size = size;
+    }
+
+    /**
+     * Floats per state.
+     */
+    public int size() {
+        return size;
+    }
+
+    public abstract void write(SnakeEnvironment environment, float[] dst, int offset);
+}
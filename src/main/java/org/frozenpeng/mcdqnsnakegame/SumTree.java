@@ -0,0 +1,83 @@
+package org.frozenpeng.mcdqnsnakegame;
+
+import java.util.Arrays;
+
+/**
+ * Binary sum-tree and min-tree over a fixed number of leaves, stored as flat arrays (node i has children
+ * 2i and 2i+1, leaves start at the capacity rounded up to a power of two). Updating a leaf, finding the leaf
+ * for a prefix sum and reading the total or minimum are all O(log n) or better.
+ */
+public class SumTree {
+
+    private final int leafCount;
+    private final int firstLeaf;
+    private final double[] sums;
+    private final double[] mins;
+
+    public SumTree(int leafCount) {
+        this.leafCount = leafCount;
+        int size = nodesPerLevel(leafCount);
+        this.firstLeaf = size;
+        this.sums = new double[2 * size];
+        this.mins = new double[2 * size];
+        Arrays.fill(mins, Double.POSITIVE_INFINITY);
+    }
+
+    /**
+     * Heap taken by the two trees over this many leaves.
+     */
+    public static long heapBytes(int leafCount) {
+        return 2L * 2 * nodesPerLevel(leafCount) * Double.BYTES;
+    }
+
+    // Leaf count rounded up to a power of two
+    private static int nodesPerLevel(int leafCount) {
+        int size = 1;
+        while (size < leafCount) {
+            size <<= 1;
+        }
+        return size;
+    }
+
+    public void set(int leaf, double value) {
+        int node = firstLeaf + leaf;
+        sums[node] = value;
+        mins[node] = value;
+        for (node >>= 1; node >= 1; node >>= 1) {
+            sums[node] = sums[2 * node] + sums[2 * node + 1];
+            mins[node] = Math.min(mins[2 * node], mins[2 * node + 1]);
+        }
+    }
+
+    public double get(int leaf) {
+        return sums[firstLeaf + leaf];
+    }
+
+    public double total() {
+        return sums[1];
+    }
+
+    /**
+     * Smallest value among leaves that have been set.
+     */
+    public double min() {
+        return mins[1];
+    }
+
+    /**
+     * The leaf whose cumulative range contains prefixSum, for 0 <= prefixSum < total().
+     */
+    public int find(double prefixSum) {
+        int node = 1;
+        while (node < firstLeaf) {
+            int left = 2 * node;
+            if (prefixSum < sums[left] || sums[left + 1] == 0) {
+                node = left;
+            } else {
+                prefixSum -= sums[left];
+                node = left + 1;
+            }
+        }
+        return Math.min(node - firstLeaf, leafCount - 1);
+    }
+}
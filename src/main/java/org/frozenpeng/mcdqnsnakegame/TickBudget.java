@@ -0,0 +1,48 @@
+package org.frozenpeng.mcdqnsnakegame;
+
+/**
+ * How much of each server tick the plugin may spend on extra simulation and training steps.
+ * The budget grows additively while the server's MSPT stays under the target and halves as soon as
+ * it goes over, so an idle server gets maximum throughput and a busy one gets its tick time back quickly.
+ * The server's MSPT is a rolling average over {@link #AVERAGING_TICKS} ticks, so it stays over the target for a while
+ * after a cut has taken effect; the budget is halved at most once per averaging window rather than every tick.
+ */
+public class TickBudget {
+
+    /**
+     * Ticks in the server's average tick time ({@code Bukkit.getAverageTickTime()}).
+     */
+    static final int AVERAGING_TICKS = 100;
+
+    private final long maxBudgetNanos;
+    private final long minBudgetNanos;
+    private final double targetMspt;
+    private long budgetNanos;
+    private int ticksSinceDecrease = AVERAGING_TICKS;
+
+    public TickBudget(double maxBudgetMillis, double minBudgetMillis, double targetMspt) {
+        this.maxBudgetNanos = (long) (maxBudgetMillis * 1_000_000);
+        this.minBudgetNanos = Math.min(maxBudgetNanos, (long) (minBudgetMillis * 1_000_000));
+        this.targetMspt = targetMspt;
+        this.budgetNanos = maxBudgetNanos;
+    }
+
+    /**
+     * Adjusts the budget to the server's current average milliseconds per tick.
+     */
+    public void adapt(double mspt) {
+        ticksSinceDecrease = Math.min(ticksSinceDecrease + 1, AVERAGING_TICKS);
+        if (mspt > targetMspt) {
+            if (ticksSinceDecrease == AVERAGING_TICKS) {
+                budgetNanos = Math.max(minBudgetNanos, budgetNanos / 2);
+                ticksSinceDecrease = 0;
+            }
+        } else {
+            budgetNanos = Math.min(maxBudgetNanos, budgetNanos + maxBudgetNanos / 10);
+        }
+    }
+
+    public long getBudgetNanos() {
+        return budgetNanos;
+    }
+}
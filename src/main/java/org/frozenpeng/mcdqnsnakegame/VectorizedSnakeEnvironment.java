@@ -0,0 +1,48 @@
+package org.frozenpeng.mcdqnsnakegame;
+
+import java.util.stream.IntStream;
+
+/**
+ * N independent {@link SnakeEnvironment} boards stepped in lockstep, so the agent can pick every board's
+ * action from a single [N, state size] forward pass. Large batches are stepped on the common fork-join pool.
+ */
+public class VectorizedSnakeEnvironment {
+
+    private static final int PARALLEL_THRESHOLD = 64; // Below this, stepping is cheaper than handing work to other threads
+
+    private final SnakeEnvironment[] environments;
+
+    public VectorizedSnakeEnvironment(int count) {
+        environments = new SnakeEnvironment[count];
+        for (int i = 0; i < count; i++) {
+            environments[i] = new SnakeEnvironment();
+        }
+    }
+
+    public int size() {
+        return environments.length;
+    }
+
+    public SnakeEnvironment get(int index) {
+        return environments[index];
+    }
+
+    public void step(Direction[] actions) {
+        if (environments.length >= PARALLEL_THRESHOLD) {
+            IntStream.range(0, environments.length).parallel().forEach(i -> environments[i].step(actions[i]));
+        } else {
+            for (int i = 0; i < environments.length; i++) {
+                environments[i].step(actions[i]);
+            }
+        }
+    }
+
+    /**
+     * Writes every board's state as one row of a row-major [N, encoding.size()] buffer.
+     */
+    public void writeStates(float[] dst, StateEncoding encoding) {
+        for (int i = 0; i < environments.length; i++) {
+            encoding.write(environments[i], dst, i * encoding.size());
+        }
+    }
+}